@@ -23,8 +23,10 @@ import edu.memphis.ccrg.lida.framework.initialization.AgentStarter;
 import edu.memphis.ccrg.lida.framework.initialization.Initializable;
 import edu.memphis.ccrg.lida.framework.shared.*;
 import edu.memphis.ccrg.lida.framework.shared.Node;
+import edu.memphis.ccrg.lida.framework.tasks.FrameworkTask;
 import edu.memphis.ccrg.lida.framework.tasks.FrameworkTaskImpl;
 import edu.memphis.ccrg.lida.framework.tasks.TaskManager;
+import edu.memphis.ccrg.lida.framework.tasks.TaskSpawner;
 import edu.memphis.ccrg.lida.globalworkspace.BroadcastListener;
 import edu.memphis.ccrg.lida.globalworkspace.Coalition;
 import edu.memphis.ccrg.lida.globalworkspace.GlobalWorkspace;
@@ -41,8 +43,33 @@ import org.neo4j.graphdb.*;
 import org.opennars.control.GeneralInferenceControl;
 import org.opennars.main.Nar;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -84,6 +111,54 @@ public class PAMemoryImpl extends FrameworkModuleImpl
 	 */
 	protected Map<String, PamNode> nodesByLabel = new ConcurrentHashMap<String, PamNode>();
 
+	/**
+	 * Label to goal-node index over the GoalGraph buffer, kept as percepts are routed.
+	 * 目标缓冲的标签索引，检索时不再遍历整个goalNs
+	 */
+	private Map<String, Set<Node>> goalsByLabel = new ConcurrentHashMap<String, Set<Node>>();
+
+	/**
+	 * (source id, link name) to links index over the NonGraph buffer, kept as percepts are routed.
+	 * 非目标缓冲的源节点+链接名索引
+	 */
+	private Map<Integer, Map<String, Set<Link>>> nonLinksBySource = new ConcurrentHashMap<Integer, Map<String, Set<Link>>>();
+
+	// 索引多于缓冲内容这么多倍就全量清理一次，索引不随传播无限增长
+	private static final int MIN_INDEX_SWEEP = 1024;
+	private final AtomicInteger indexedSinceSweep = new AtomicInteger();
+
+	/**
+	 * Variable node id to the instances bound to it through "nowisa" links of SeqGraph,
+	 * stamped with the binding version they were resolved at. An entry is trusted while
+	 * its version is current; routing a "nowisa" link to SeqGraph bumps the version.
+	 * 变量到现值的绑定表，按版本失效，nowisa进入SeqGraph时版本加一
+	 */
+	private Map<Integer, Binding> bindings = new ConcurrentHashMap<Integer, Binding>();
+	private final AtomicLong bindingVersion = new AtomicLong();
+
+	private volatile Map.Entry<Long, String> cycleName;
+
+	/**
+	 * Pose of the agent, read from the environment at most once per tick.
+	 */
+	private volatile AgentPose agentPose;
+
+	private static final int DEFAULT_TRACE_CAPACITY = 4096;
+	private static final int DEFAULT_TRACE_SAMPLE_RATE = 16;
+	private static final String DEFAULT_TRACE_WATCH = "";
+
+	/**
+	 * Sampled ring buffer of the events on the propagation hot path.
+	 * 热路径事件追踪，替代println
+	 */
+	private PamTrace pamTrace = new PamTrace(false, DEFAULT_TRACE_CAPACITY, DEFAULT_TRACE_SAMPLE_RATE, DEFAULT_TRACE_WATCH);
+
+	/**
+	 * Counters and histograms of excitation, propagation and graph db queries.
+	 * 运行指标，调参用
+	 */
+	private final PamMetrics pamMetrics = new PamMetrics();
+
 	/**
 	 * How PAM calculates the amount of activation to propagate PAM如何计算要传播的激活量
 	 */
@@ -96,7 +171,9 @@ public class PAMemoryImpl extends FrameworkModuleImpl
 	private int propagationTaskTicksPerRun = DEFAULT_PROPAGATION_TASK_TICKS;
 
 	private static final double DEFAULT_PERCEPT_THRESHOLD = 0.7;	// 感知阈值
-	private static double perceptThreshold = DEFAULT_PERCEPT_THRESHOLD;
+	private double perceptThreshold = DEFAULT_PERCEPT_THRESHOLD;
+	// 兼容旧的静态读法，最近一个设置阈值的PAM的值
+	private static volatile double lastPerceptThreshold = DEFAULT_PERCEPT_THRESHOLD;
 
 	private static final double DEFAULT_UPSCALE_FACTOR = 0.6;
 
@@ -108,6 +185,88 @@ public class PAMemoryImpl extends FrameworkModuleImpl
 	private static final double DEFAULT_PROPAGATION_THRESHOLD = 0.05;	// 传播激活阈值
 	private double propagateActivationThreshold = DEFAULT_PROPAGATION_THRESHOLD;
 
+	private static final int DEFAULT_REFRACTORY_TICKS = 0;	// 单传递不应期，0为按无意识激活判断
+	private int refractoryTicks = DEFAULT_REFRACTORY_TICKS;
+
+	private boolean mergeVisits = false;
+
+	private static final int DEFAULT_LEARNING_QUEUE = 64;
+	private static final int DEFAULT_LEARNING_GROUP = 16;
+	private static final long DEFAULT_SHUTDOWN_MILLIS = 5000L;
+	// 同步执行时每轮最多任务数
+	private static final int STANDALONE_ROUND_TASKS = 1024;
+
+	/**
+	 * Background writer of the broadcasts learnt into the graph db, null if learning is synchronous.
+	 * 异步学习，广播周期不等待图库事务
+	 */
+	private LearningWriter learningWriter;
+
+	private static final int DEFAULT_MAILBOX_TICKS = 1;
+
+	private static final int DEFAULT_CONSOLIDATION_TICKS = 150;
+	private static final int DEFAULT_CONSOLIDATION_BATCH = 256;
+	private static final double DEFAULT_CONSOLIDATION_RATE = 0.01;
+	private int consolidationBatch = DEFAULT_CONSOLIDATION_BATCH;
+	private double consolidationRate = DEFAULT_CONSOLIDATION_RATE;
+	private static final double DEFAULT_CONSOLIDATION_MAX_WEIGHT = 1.0;
+	private double consolidationMaxWeight = DEFAULT_CONSOLIDATION_MAX_WEIGHT;
+
+	// 巩固扫描到的稠密下标，下次从这里继续
+	private int consolidationCursor;
+
+	/*
+	 * Mailbox of the listener entry points: callers only enqueue, the MailboxTask drains.
+	 * Every broadcast is queued for learning; only the broadcast count propagation stamps
+	 * from is taken over at once, so a newer broadcast supersedes a waiting one there.
+	 * 广播、工作区内容、预期的信箱，调用方不等PAM
+	 */
+	private final Queue<Coalition> pendingBroadcasts = new ConcurrentLinkedQueue<Coalition>();
+	private final AtomicInteger waitingBroadcasts = new AtomicInteger();
+	private final AtomicLong receivedBroadcast = new AtomicLong(Long.MIN_VALUE);
+	private final Queue<Map.Entry<ModuleName, WorkspaceContent>> pendingContent =
+			new ConcurrentLinkedQueue<Map.Entry<ModuleName, WorkspaceContent>>();
+	private final Queue<NodeStructure[]> pendingPreafference = new ConcurrentLinkedQueue<NodeStructure[]>();
+	private final AtomicBoolean draining = new AtomicBoolean();
+
+	// 无任务调度器时待同步执行的任务
+	private final Queue<FrameworkTask> standaloneTasks = new ConcurrentLinkedQueue<FrameworkTask>();
+
+	private double preafferenceActivation;
+	private boolean preafferenceEvict;
+
+	private static final int DEFAULT_PARTITION_BATCH = 64;
+	private static final int DEFAULT_PARTITION_INBOX = 256;
+	private static final long PARTITION_POLL_MILLIS = 1L;
+
+	/**
+	 * Partitions owning the propagation of their nodes, null if propagation runs on the TaskManager.
+	 * 分区传播，跨区激活批量发送
+	 */
+	private PamPartitions partitions;
+
+	/**
+	 * Topology shared with other agents, null if this PAM holds its own full graph.
+	 * Nodes and links are copied from it into this PAM when first touched.
+	 * 多agent共用的只读基图，本PAM只保留触及的部分
+	 */
+	private SharedPamGraph sharedGraph;
+
+	// 已从共享基图复制过出边的节点id
+	private final Set<Integer> materializedNodes = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Recorder of the excitation input, null if not recording.
+	 * 兴奋输入录制，用于回放复现
+	 */
+	private volatile ExcitationLog.Writer excitationRecorder;
+
+	/**
+	 * Long-term store of the concept graph that scene, sequence and neighbour lookups go to.
+	 * 长期图存储，图库或纯内存
+	 */
+	private PamGraphStore graphStore = new NeoPamGraphStore(pamNodeStructure);
+
 	private Map<Integer, LinkCategory> linkCategories = new HashMap<Integer, LinkCategory>();
 
 	/**
@@ -146,8 +305,59 @@ public class PAMemoryImpl extends FrameworkModuleImpl
 	 * of activation from a Node or Link, default is 1 tick
 	 * pam.propagateActivationThreshold the amount of activation
 	 * necessary to be propagated i.e. a lesser amount is not (worth being) passed.
+	 * pam.refractoryTicks the number of ticks after a Node propagated during which
+	 * it is not propagated to again, default is 0: a sink is skipped while its
+	 * activation in NonGraph is at least 0.98
+	 * pam.mergeVisits whether a Node reached again within the same broadcast cycle gets the
+	 * activation of the new arrival added to it and is routed like the first arrival, but does
+	 * not propagate its subtree again, default is false
 	 * pam.perceptMapping.* (String)- Can accept multiple mapping definitions of the form:
 	 * mappingType:originalFactoryName:mappedFactoryname
+	 * pam.trace.enabled whether hot path events are recorded in the {@link PamTrace}, default is false
+	 * pam.trace.capacity the number of events kept by the {@link PamTrace}
+	 * pam.trace.sampleRate one in this many events is recorded, default is 16
+	 * pam.trace.types (String) comma separated {@link PamTrace.EventType} names recorded, default is "", all types
+	 * pam.trace.watch (String) comma separated node names whose events are always recorded, default is "", none
+	 * pam.metrics.jmx whether the {@link PamMetrics} are registered as a JMX MBean, default is false
+	 * pam.checkpoint (String) path of a checkpoint written by {@link #writeCheckpoint(String)},
+	 * restored at init if the file exists
+	 * pam.preload whether the nodes with the pam.preload.labels (String, comma separated) and their
+	 * relationships are streamed from the graph db into PAM at init, default is false
+	 * pam.preload.batchSize the number of nodes and links added per batch, default is 1000
+	 * pam.learning.async whether broadcasts are learnt into the graph db by a background writer, default is false
+	 * pam.learning.queue the number of broadcasts waiting to be written, the oldest is dropped when full, default is 64
+	 * pam.learning.group the number of broadcasts written in one transaction, default is 16
+	 * pam.consolidation whether the {@link LongMemBackgroundTask} persists weight updates of the nodes
+	 * whose activation crossed pam.consolidation.threshold (default is the percept threshold), default is false
+	 * pam.consolidation.ticksPerRun the shortest period of the consolidation task, default is 150
+	 * pam.consolidation.batchSize the most nodes written per run, default is 256
+	 * pam.consolidation.rate the share of the distance to pam.consolidation.maxWeight that a node's
+	 * weight moves per threshold crossing, default is 0.01
+	 * pam.consolidation.maxWeight the weight consolidation saturates at; heavier nodes are left as
+	 * they are, default is 1.0
+	 * pam.preafference.activation the activation given to the nodes expected by a preafference
+	 * when they are prefetched, default is 0.0, no pre-activation
+	 * pam.preafference.evict whether inactive nodes of the delete list of a preafference are
+	 * removed from PAM, default is false
+	 * pam.partitions experimental: the number of partitions propagation is hash-partitioned into by
+	 * sink node id, each run by its own thread, default is 0, propagation runs as tasks of the
+	 * TaskManager. Partitions share the nodes and links of PAM; see {@link PamPartitions}
+	 * pam.partitions.transport (String) "local" to hand message batches over in memory, "loopback"
+	 * to send them through sockets on the loopback interface, default is "local"
+	 * pam.partitions.port the first port of the loopback partitions, default is 0, any free port
+	 * pam.partitions.batchSize the number of activation messages sent per batch, default is 64
+	 * pam.partitions.inbox the most message batches from outside the partitions waiting in the inbox
+	 * of a partition; a sender finding it full waits, default is 256
+	 * pam.sharedGraph (String) key of a {@link SharedPamGraph}: if one is registered under it, this PAM
+	 * skips preloading and copies nodes and links from it on first touch, otherwise the graph loaded by
+	 * this PAM is registered under it for the agents initialized later, default is "", no sharing
+	 * pam.record (String) path of an {@link ExcitationLog} every excitation is recorded to,
+	 * default is "", no recording
+	 * pam.graphStore (String) "neo4j" to look up the graph db, "memory" to look up an
+	 * {@link InMemoryPamGraphStore} built from the graph PAM holds after preload and restore,
+	 * falling back to the graph db on a miss, counted in {@link PamMetrics}; the store is a snapshot
+	 * of that graph, later changes to the graph db are seen only on a miss; ignored with a warning
+	 * if PAM holds no graph then, default is "neo4j"
 	 * 
 	 * 将使用以下名称设置参数：
 	 * pam.upscale 从概念深度较低的节点向上传递到较高深度的节点的激活量的缩放
@@ -156,7 +366,20 @@ public class PAMemoryImpl extends FrameworkModuleImpl
 	 * pam.excitationTicksPerRun 节点和链接在收到一些激活后激发的延迟（以滴答为单位），默认为 1 个滴答
 	 * pam.propagationTicksPerRun 从节点或链接传播激活的延迟（以滴答为单位），默认为 1 个滴答
 	 * pam.propagateActivationThreshold 传播所需的激活量，即较小的数量不（值得）通过。
+	 * pam.refractoryTicks 节点传递后的不应期（以滴答为单位），期内不再被传递，默认为 0，按无意识中激活不低于0.98判断
+	 * pam.mergeVisits 同一广播周期内多路径到达的节点并入本次激活量、照常分发，但不再重复扩散子树，默认为 false
 	 * pam.perceptMapping.（字符串）- 可以接受以下形式的多个映射定义：mappingType:origi nalFactoryName:映射的工厂名称
+	 * pam.trace.* 热路径事件追踪的开关（默认关）、容量、采样率、记录的事件类型和必记的节点名（默认无）
+	 * pam.metrics.jmx 是否将运行指标注册为JMX MBean
+	 * pam.checkpoint 检查点文件路径，存在则在初始化时恢复，热启动
+	 * pam.preload 初始化时按pam.preload.labels标签一次流式预载节点和边，pam.preload.batchSize为每批数量
+	 * pam.learning.* 是否异步学习写库，待写队列长度，每个事务合并写入的广播数
+	 * pam.consolidation.* 是否后台巩固长期记忆，越阈值、最短周期、每批节点数、每次越阈值向上限靠近的比例、权重上限
+	 * pam.preafference.* 预期节点预取时的预激活量，是否提前移除预期删除的不活跃节点
+	 * pam.partitions.* 传播分区数，分区间传输方式（本进程或本机回环），回环起始端口，每批激活消息数，收件箱容量（批），试验用
+	 * pam.sharedGraph 共享基图的键，已有则不预载、按需复制，没有则把本PAM载入的图登记共享
+	 * pam.record 兴奋录制文件路径，供回放复现
+	 * pam.graphStore 长期图存储，neo4j查图库，memory用预载后的图建内存存储，未命中再查图库，PAM为空时告警并查图库
 	 * 
 	 * @see Initializable
 	 */
@@ -165,13 +388,215 @@ public class PAMemoryImpl extends FrameworkModuleImpl
 		upscaleFactor=getParam("pam.upscale", DEFAULT_UPSCALE_FACTOR);
 		downscaleFactor=getParam("pam.downscale",DEFAULT_DOWNSCALE_FACTOR);
 		perceptThreshold=getParam("pam.perceptThreshold",DEFAULT_PERCEPT_THRESHOLD);
+		lastPerceptThreshold = perceptThreshold;
 		excitationTaskTicksPerRun=getParam("pam.excitationTicksPerRun",DEFAULT_EXCITATION_TASK_TICKS);
 		propagationTaskTicksPerRun=getParam("pam.propagationTicksPerRun",DEFAULT_PROPAGATION_TASK_TICKS);
 		propagateActivationThreshold=getParam("pam.propagateActivationThreshold",DEFAULT_PROPAGATION_THRESHOLD);
+		refractoryTicks=getParam("pam.refractoryTicks",DEFAULT_REFRACTORY_TICKS);
+		mergeVisits=getParam("pam.mergeVisits",false);
 		initTypeConversion();
+		pamTrace = new PamTrace(getParam("pam.trace.enabled", false),
+				getParam("pam.trace.capacity", DEFAULT_TRACE_CAPACITY),
+				getParam("pam.trace.sampleRate", DEFAULT_TRACE_SAMPLE_RATE),
+				getParam("pam.trace.watch", DEFAULT_TRACE_WATCH));
+		pamTrace.setTypes(getParam("pam.trace.types", ""));
+		if (getParam("pam.metrics.jmx", false)) {
+			registerMetricsMBean();
+		}
+		String checkpoint = getParam("pam.checkpoint", "");
+		if (!checkpoint.isEmpty() && new File(checkpoint).isFile()) {
+			restoreCheckpoint(checkpoint);
+		}
+		String sharedKey = getParam("pam.sharedGraph", "");
+		if (!sharedKey.isEmpty()) {
+			sharedGraph = SharedPamGraph.get(sharedKey);
+		}
+		if (sharedGraph == null && getParam("pam.preload", false)) {
+			preload(Arrays.asList(getParam("pam.preload.labels", DEFAULT_PRELOAD_LABELS).split(",")),
+					getParam("pam.preload.batchSize", DEFAULT_PRELOAD_BATCH));
+		}
+		if (!sharedKey.isEmpty() && sharedGraph == null && pamNodeStructure.getNodeCount() > 0) {
+			// 第一个agent载入，登记给后来的agent
+			SharedPamGraph.register(sharedKey, SharedPamGraph.capture(pamNodeStructure));
+		}
+		if ("memory".equals(getParam("pam.graphStore", "neo4j"))) {
+			if (pamNodeStructure.getNodeCount() == 0) {
+				// 跟随共享基图或未预载时PAM为空，内存存储会查无所获
+				logger.log(Level.WARNING, "pam.graphStore=memory needs a graph preloaded or restored into PAM, "
+						+ "looking up the graph db", TaskManager.getCurrentTick());
+			} else {
+				graphStore = new InMemoryPamGraphStore(pamNodeStructure, graphStore, pamMetrics);
+			}
+		}
+		if (getParam("pam.learning.async", false)) {
+			learningWriter = new LearningWriter(getParam("pam.learning.queue", DEFAULT_LEARNING_QUEUE),
+					getParam("pam.learning.group", DEFAULT_LEARNING_GROUP));
+			learningWriter.start();
+		}
+		if (getParam("pam.consolidation", false)) {
+			// 传播时记越阈值，巩固扫描时清
+			pamNodeStructure.setCrossingThreshold(getParam("pam.consolidation.threshold", perceptThreshold));
+			consolidationBatch = getParam("pam.consolidation.batchSize", DEFAULT_CONSOLIDATION_BATCH);
+			consolidationRate = getParam("pam.consolidation.rate", DEFAULT_CONSOLIDATION_RATE);
+			consolidationMaxWeight = getParam("pam.consolidation.maxWeight", DEFAULT_CONSOLIDATION_MAX_WEIGHT);
+			spawn(new LongMemBackgroundTask(
+					getParam("pam.consolidation.ticksPerRun", DEFAULT_CONSOLIDATION_TICKS)));
+		}
+		preafferenceActivation = getParam("pam.preafference.activation", 0.0);
+		preafferenceEvict = getParam("pam.preafference.evict", false);
+		String record = getParam("pam.record", "");
+		if (!record.isEmpty()) {
+			startRecording(record);
+		}
+		spawn(new MailboxTask(DEFAULT_MAILBOX_TICKS));
+		int partitionCount = getParam("pam.partitions", 0);
+		if (partitionCount > 0) {
+			try {
+				partitions = new PamPartitions(partitionCount, getParam("pam.partitions.batchSize", DEFAULT_PARTITION_BATCH),
+						getParam("pam.partitions.inbox", DEFAULT_PARTITION_INBOX),
+						getParam("pam.partitions.transport", "local"), getParam("pam.partitions.port", 0));
+				logger.log(Level.WARNING, "PAM partitions are experimental: {1} partition threads share the nodes "
+						+ "and links of PAM", new Object[]{TaskManager.getCurrentTick(), partitionCount});
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Cannot open PAM partitions, propagating on the TaskManager: {1}",
+						new Object[]{TaskManager.getCurrentTick(), e});
+			}
+		}
+		if (learningWriter != null || excitationRecorder != null || partitions != null) {
+			// 进程退出时写完学习队列、关闭录制、停分区线程
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> shutdown(DEFAULT_SHUTDOWN_MILLIS), "pam-shutdown"));
+		}
 //		pam = (PAMemoryImpl) AgentStarter.pam;
 	}
 
+	private static final String DEFAULT_PRELOAD_LABELS = "场景,具身动作,状态,变量场景,语法,时序,心理动作,ifelse,循环";
+	private static final int DEFAULT_PRELOAD_BATCH = 1000;
+
+	/**
+	 * Streams the nodes having any of specified labels, with their outgoing relationships,
+	 * from the graph db into PAM, one label scan per label in one transaction. Nodes and links are
+	 * added in batches, their labels are classified by {@link #putMap(Node, String)} in the same pass,
+	 * progress is logged per batch. The bulk read is logged, not recorded as a query latency.
+	 * 预载工作图，稳态激发和传播不再查库
+	 * @param labels labels of the nodes to load
+	 * @param batchSize number of rows added per batch
+	 * @return number of loaded nodes
+	 */
+	public int preload(Collection<String> labels, int batchSize) {
+		List<String> wanted = new ArrayList<String>();
+		for (String lb : labels) {
+			if (!lb.trim().isEmpty()) {
+				wanted.add(lb.trim());
+			}
+		}
+		int size = Math.max(1, batchSize);
+		Set<Long> seen = new HashSet<Long>();
+		// 多标签节点的边只取一次
+		Set<Long> seenLinks = new HashSet<Long>();
+		List<Node> nodeBatch = new ArrayList<Node>(size);
+		List<Link> linkBatch = new ArrayList<Link>(size);
+		int nodes = 0;
+		int links = 0;
+		long start = System.nanoTime();
+		try (Transaction tx = graphDb.beginTx()) {
+			for (String label : wanted) {
+				// 按标签扫描，走标签索引，不全库扫描
+				String query = "match (n:`" + label.replace("`", "``") + "`) "
+						+ "optional match (n)-[r]->(m) return n, r, m";
+				try (Result result = tx.execute(query)) {
+					while (result.hasNext()) {
+						Map<String, Object> row = result.next();
+						for (String key : new String[]{"n", "m"}) {
+							org.neo4j.graphdb.Node neoNode = (org.neo4j.graphdb.Node) row.get(key);
+							if (neoNode != null && seen.add(neoNode.getId())) {
+								nodeBatch.add(NeoUtil.getPamNode(neoNode, (String) neoNode.getProperty("name")));
+							}
+						}
+						Relationship re = (Relationship) row.get("r");
+						if (re != null && seenLinks.add(re.getId())) {
+							linkBatch.add(NeoUtil.CastNeoToLidaLink(re, null));
+						}
+						if (nodeBatch.size() >= size || linkBatch.size() >= size) {
+							nodes += addPreloadBatch(nodeBatch, linkBatch);
+							links += linkBatch.size();
+							linkBatch.clear();
+							logger.log(Level.INFO, "PAM preload: {1} nodes, {2} links",
+									new Object[]{TaskManager.getCurrentTick(), nodes, links});
+						}
+					}
+				}
+			}
+			nodes += addPreloadBatch(nodeBatch, linkBatch);
+			links += linkBatch.size();
+			tx.commit();
+		}
+		logger.log(Level.INFO, "PAM preload done: {1} nodes, {2} links in {3} ms",
+				new Object[]{TaskManager.getCurrentTick(), nodes, links, (System.nanoTime() - start) / 1000000});
+		return nodes;
+	}
+
+	private int addPreloadBatch(List<Node> nodeBatch, List<Link> linkBatch) {
+		int n = nodeBatch.size();
+		for (Node node : nodeBatch) {
+			PamNode added = addDefaultNode(node);
+			putMap(added, added.getName());
+		}
+		nodeBatch.clear();
+		for (Link link : linkBatch) {
+			addDefaultLink(link);
+		}
+		return n;
+	}
+
+	/**
+	 * Writes the node and link tables of PAM, with the activation, incentive salience,
+	 * truth and weight of every node, to a memory-mapped checkpoint file.
+	 * 写检查点，重启时用pam.checkpoint恢复
+	 * @param path file to write
+	 * @return whether the checkpoint was written
+	 */
+	public boolean writeCheckpoint(String path) {
+		try {
+			PamCheckpoint.write(this, Paths.get(path));
+			return true;
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Cannot write PAM checkpoint {1}: {2}",
+					new Object[]{TaskManager.getCurrentTick(), path, e});
+			return false;
+		}
+	}
+
+	/**
+	 * Maps a checkpoint written by {@link #writeCheckpoint(String)} and restores its nodes
+	 * and links into PAM straight from the mapped tables, without the graph db. Nodes whose
+	 * id is already in PAM under another name are skipped.
+	 * @param path checkpoint file
+	 * @return number of restored nodes
+	 */
+	public int restoreCheckpoint(String path) {
+		try {
+			int n = PamCheckpoint.restore(this, Paths.get(path));
+			logger.log(Level.INFO, "Restored {1} PAM nodes from checkpoint {2}",
+					new Object[]{TaskManager.getCurrentTick(), n, path});
+			return n;
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Cannot restore PAM checkpoint {1}: {2}",
+					new Object[]{TaskManager.getCurrentTick(), path, e});
+			return 0;
+		}
+	}
+
+	private void registerMetricsMBean() {
+		try {
+			ObjectName name = new ObjectName("edu.memphis.ccrg.lida.pam:type=PamMetrics,id="
+					+ Integer.toHexString(System.identityHashCode(this)));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(pamMetrics, name);
+		} catch (JMException e) {
+			logger.log(Level.WARNING, "Cannot register PAM metrics MBean: {1}",
+					new Object[]{TaskManager.getCurrentTick(), e});
+		}
+	}
+
 	private void initTypeConversion() {
 		Map<String,?> parameters = getParameters();
 		for(String key: parameters.keySet()){
@@ -233,14 +658,15 @@ public class PAMemoryImpl extends FrameworkModuleImpl
 
 	public WorkspaceBuffer understandGraph;
 
-	public NodeStructure csmNs;
-	public NodeStructure nonNs;
-	public NodeStructure feelNs;
-	public NodeStructure conNs;
-	public NodeStructure goalNs;
-	public NodeStructure seqNs;
-	public NodeStructure sceneNs;
-	public NodeStructure yufaNs;
+	// 未关联工作空间时（基准测试、压测）用独立的空结构，关联后替换为各buffer内容
+	public NodeStructure csmNs = new NodeStructureImpl();
+	public NodeStructure nonNs = new NodeStructureImpl();
+	public NodeStructure feelNs = new NodeStructureImpl();
+	public NodeStructure conNs = new NodeStructureImpl();
+	public NodeStructure goalNs = new NodeStructureImpl();
+	public NodeStructure seqNs = new NodeStructureImpl();
+	public NodeStructure sceneNs = new NodeStructureImpl();
+	public NodeStructure yufaNs = new NodeStructureImpl();
 
 	public NodeStructure unNs;
 
@@ -305,6 +731,7 @@ public class PAMemoryImpl extends FrameworkModuleImpl
 			feelNs = feelGraph.getBufferContent(null);
 			goalNs = goalGraph.getBufferContent(null);
 			seqNs = seqGraph.getBufferContent(null);
+			invalidateBindings();
 
 			conNs = concentGraph.getBufferContent(null);
 			sceneNs = sceneGraph.getBufferContent(null);
@@ -360,10 +787,16 @@ public class PAMemoryImpl extends FrameworkModuleImpl
 			return null;
 		}
 //		PamNode node = (PamNode) pamNodeStructure.addDefaultNode(n);
+		boolean fresh = !pamNodeStructure.containsNode(n.getNodeId());
 		PamNode node = (PamNode) pamNodeStructure.addNode(n,"PamNodeImpl");
 		if (node.getName() != null) {
 			nodesByLabel.put(node.getName(), node);
 		}
+		if (fresh) {
+			// 从图谱新取的节点，标签以图谱为准，只重新分类这一个
+			invalidateNodeLabels(node.getNodeId());
+		}
+		refreshNodeWeight(node);
 		return node;
 	}
 
@@ -451,26 +884,204 @@ public class PAMemoryImpl extends FrameworkModuleImpl
 									detector, detector.getPamLinkable() });
 		}
 
-		taskSpawner.addTask(detector);
+		spawn(detector);
 		logger.log(Level.FINE, "Added feature detector to PAM", TaskManager
 				.getCurrentTick());
 	}
 
+	/**
+	 * Hands specified task to the {@link TaskSpawner} of PAM or, when PAM runs standalone
+	 * without one, queues it for {@link #runStandaloneTasks(int)}.
+	 * 无任务调度器时（压测、回放）排队，同步执行
+	 */
+	protected void spawn(FrameworkTask task) {
+		TaskSpawner ts = taskSpawner;
+		if (ts != null) {
+			ts.addTask(task);
+		} else {
+			standaloneTasks.add(task);
+		}
+	}
+
+	/*
+	 * Whether spawned tasks go to a TaskSpawner, false in a standalone PAM.
+	 */
+	boolean hasTaskSpawner() {
+		return taskSpawner != null;
+	}
+
+	/**
+	 * @return the number of tasks waiting in the {@link TaskSpawner}, or in the standalone queue,
+	 * plus the activation messages and propagation queued in the partitions
+	 */
+	public int getPendingTaskCount() {
+		TaskSpawner ts = taskSpawner;
+		PamPartitions p = partitions;
+		return (ts != null ? ts.getTasks().size() : standaloneTasks.size()) + (p != null ? p.pending() : 0);
+	}
+
+	/**
+	 * @return the propagation and excitation tasks not yet run, in the {@link TaskSpawner} or
+	 * the standalone queue, plus those queued in the partitions; repeating tasks are not counted
+	 */
+	public int getPendingPropagationCount() {
+		TaskSpawner ts = taskSpawner;
+		PamPartitions p = partitions;
+		int count = p != null ? p.pending() : 0;
+		if (ts == null) {
+			return count + standaloneTasks.size();
+		}
+		for (FrameworkTask t : ts.getTasks()) {
+			if (t instanceof PropagationTask || t instanceof ExcitationTask) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Waits until the propagation started so far has settled: no propagation or excitation
+	 * task is waiting anywhere. Without a {@link TaskSpawner} the tasks are run on the
+	 * calling thread, see {@link #runStandaloneTasks(int)}.
+	 * 等传播静止，无调度器时同步执行
+	 * @param timeoutMillis the longest time to wait
+	 * @return true if propagation settled, false on timeout
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public boolean awaitQuiescence(long timeoutMillis) throws InterruptedException {
+		long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+		while (true) {
+			if (taskSpawner == null) {
+				runStandaloneTasks(STANDALONE_ROUND_TASKS);
+			}
+			if (getPendingPropagationCount() == 0) {
+				return true;
+			}
+			if (System.nanoTime() >= deadline) {
+				return false;
+			}
+			if (taskSpawner != null || partitions != null) {
+				Thread.sleep(1);
+			}
+		}
+	}
+
+	/**
+	 * Runs the tasks queued while PAM has no {@link TaskSpawner}, and the tasks they spawn,
+	 * on the calling thread until the queue is empty, draining the mailbox between rounds.
+	 * Every task runs once: repeating tasks are not rescheduled.
+	 * @param maxTasks the most tasks run, guards against propagation that never settles
+	 * @return the number of tasks run
+	 */
+	public int runStandaloneTasks(int maxTasks) {
+		int ran = 0;
+		do {
+			drainMailbox();
+			FrameworkTask task;
+			while (ran < maxTasks && (task = standaloneTasks.poll()) != null) {
+				try {
+					task.call();
+				} catch (Exception e) {
+					logger.log(Level.WARNING, "Standalone task {1} failed: {2}",
+							new Object[]{TaskManager.getCurrentTick(), task, e});
+				}
+				ran++;
+			}
+		} while (ran < maxTasks && !standaloneTasks.isEmpty());
+		return ran;
+	}
+
 	@Override
 	public void addPamListener(PamListener pl) {
 		pamListeners.add(pl);
 	}
 
 	@Override
-	public synchronized void receiveBroadcast(Coalition coalition) {
-		learn(coalition);
+	public void receiveBroadcast(Coalition coalition) {
+		// 收到即记广播周期，传播按它打戳，不等信箱处理
+		stampBroadcast(((NodeStructure) coalition.getContent()).getBroadSceneCount());
+		if (waitingBroadcasts.getAndIncrement() > 0) {
+			// 对传播而言旧广播已被取代，学习仍逐个进行
+			pamMetrics.coalescedBroadcasts.increment();
+		}
+		pendingBroadcasts.offer(coalition);
+	}
+
+	/*
+	 * Makes specified broadcast count the one propagation stamps from, unless a newer one
+	 * was received already.
+	 */
+	private void stampBroadcast(long broadcast) {
+		if (receivedBroadcast.accumulateAndGet(broadcast, Math::max) == broadcast) {
+			csmNs.setBroadSceneCount(broadcast);
+		}
+	}
+
+	/**
+	 * Processes everything waiting in the mailbox: the broadcasts, learnt one by one, then
+	 * the workspace contents and preafferences, each in arrival order. Normally run by the
+	 * {@link MailboxTask} each tick; returns at once if another thread is draining.
+	 * @return the number of processed messages
+	 */
+	public int drainMailbox() {
+		if (!draining.compareAndSet(false, true)) {
+			return 0;
+		}
+		int count = 0;
+		try {
+			Coalition coalition;
+			while ((coalition = pendingBroadcasts.poll()) != null) {
+				waitingBroadcasts.decrementAndGet();
+				learnBroadcast(coalition);
+				count++;
+			}
+			Map.Entry<ModuleName, WorkspaceContent> content;
+			while ((content = pendingContent.poll()) != null) {
+				processWorkspaceContent(content.getKey(), content.getValue());
+				count++;
+			}
+			NodeStructure[] preafference;
+			while ((preafference = pendingPreafference.poll()) != null) {
+				processPreafference(preafference[0], preafference[1]);
+				count++;
+			}
+		} finally {
+			draining.set(false);
+		}
+		return count;
+	}
+
+	/**
+	 * The single consumer of the mailbox of PAM.
+	 */
+	private class MailboxTask extends FrameworkTaskImpl {
+		public MailboxTask(int ticksPerRun) {
+			super(ticksPerRun);
+		}
+
+		@Override
+		protected void runThisFrameworkTask() {
+			drainMailbox();
+		}
 	}
 
 	Nar nar = AgentStarter.nar;
 
 	@Override
 	public void learn(@NotNull Coalition coalition) {
-		csmNs.setBroadSceneCount(((NodeStructure) coalition.getContent()).getBroadSceneCount());
+		stampBroadcast(((NodeStructure) coalition.getContent()).getBroadSceneCount());
+		learnBroadcast(coalition);
+	}
+
+	/*
+	 * Learns specified broadcast; its count was taken over when it was received.
+	 */
+	private void learnBroadcast(Coalition coalition) {
+		long broadcast = ((NodeStructure) coalition.getContent()).getBroadSceneCount();
+		if (learningWriter != null) {
+			// 只在广播线程里取快照，写库交给后台
+			learningWriter.offer(getLearningBatch(broadcast));
+		}
 
 //		GeneralInferenceControl.selectConceptForInference(nar.memory, nar.narParameters, nar);
 
@@ -500,7 +1111,7 @@ public class PAMemoryImpl extends FrameworkModuleImpl
 //							break;
 //					}
 //				}
-//				if (node.getLastAct().equals(String.valueOf(csmNs.getBroadSceneCount())) && issinglenode) {
+//				if (getLastActCycle(node) == csmNs.getBroadSceneCount() && issinglenode) {
 //					// 当前新场景建模，理论上同时有几个为实点边，时序新建
 //					if (ntruth == 1 || ntruth == 3 || ntruth == 5) {
 //						for (int i = 0; i < 3; i++) {
@@ -516,6 +1127,223 @@ public class PAMemoryImpl extends FrameworkModuleImpl
 
 	}
 
+	private static final Set<String> STRUCTURE_LABELS = new HashSet<String>(
+			Arrays.asList("场景", "具身动作", "时序", "状态", "事件"));
+
+	/*
+	 * Snapshot of the nodes of csmNs learnable in specified broadcast: activated in this
+	 * broadcast with a real truth. Whether they are single nodes is checked by the writer
+	 * against their labels in the graph db, as learn() does.
+	 */
+	private LearningBatch getLearningBatch(long broadcast) {
+		List<Integer> learnt = new ArrayList<Integer>();
+		for (Node node : csmNs.getNodes()) {
+			int ntruth = node.getTruth();
+			if (getLastActCycle(node) == broadcast && (ntruth == 1 || ntruth == 3 || ntruth == 5)) {
+				learnt.add(node.getNodeId());
+			}
+		}
+		// 按id排序，同一组节点的广播可比较去重
+		int[] ids = new int[learnt.size()];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = learnt.get(i);
+		}
+		Arrays.sort(ids);
+		return new LearningBatch(broadcast, ids);
+	}
+
+	/**
+	 * Stops the background work of PAM: writes the learning still queued, waiting at most
+	 * specified time, and stops its writer, closes the excitation recording and stops the
+	 * partition threads. Registered as a JVM shutdown hook at init when any of them is started.
+	 * @param timeoutMillis the longest time to wait for queued writes
+	 */
+	public void shutdown(long timeoutMillis) {
+		LearningWriter writer = learningWriter;
+		learningWriter = null;
+		if (writer != null) {
+			try {
+				writer.stop(timeoutMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		stopRecording();
+		shutdownPartitions();
+	}
+
+	/**
+	 * Waits until every broadcast learnt so far has been written to the graph db.
+	 * Returns at once if learning is synchronous.
+	 * @param timeoutMillis the longest time to wait
+	 * @return true if everything was written, false on timeout
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public boolean flushLearning(long timeoutMillis) throws InterruptedException {
+		return learningWriter == null || learningWriter.flush(timeoutMillis);
+	}
+
+	/**
+	 * The nodes learnt in one broadcast, snapshotted on the broadcast thread:
+	 * their ids, ascending.
+	 */
+	private static class LearningBatch {
+		private final long broadcast;
+		private final int[] ids;
+
+		LearningBatch(long broadcast, int[] ids) {
+			this.broadcast = broadcast;
+			this.ids = ids;
+		}
+	}
+
+	/**
+	 * Runs the graph db part of {@link #learn(Coalition)} on a daemon thread: the same
+	 * transaction over the learnable nodes of a broadcast, with the same single node check
+	 * on their labels, making the same graph mutations. Broadcasts wait in a bounded queue,
+	 * the broadcasts queued meanwhile share one transaction, and a rebroadcast of the same
+	 * scene count or of the same nodes is skipped by the writer thread.
+	 * 学习写库移到后台线程，事务内容与learn()相同，有界队列+组提交
+	 */
+	private class LearningWriter implements Runnable {
+		private final BlockingQueue<LearningBatch> queue;
+		private final int groupSize;
+		private final Object flushLock = new Object();
+		private long enqueued;
+		private long processed;
+		// 只在写库线程读写
+		private long lastBroadcast = Long.MIN_VALUE;
+		private int[] lastIds = new int[0];
+		private final LongAdder dropped = new LongAdder();
+		private Thread thread;
+
+		LearningWriter(int capacity, int groupSize) {
+			this.queue = new ArrayBlockingQueue<LearningBatch>(Math.max(1, capacity));
+			this.groupSize = Math.max(1, groupSize);
+		}
+
+		void start() {
+			thread = new Thread(this, "pam-learning");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		/*
+		 * Writes what is queued, waiting at most specified time, then stops the thread.
+		 */
+		void stop(long timeoutMillis) throws InterruptedException {
+			flush(timeoutMillis);
+			Thread t = thread;
+			if (t != null) {
+				t.interrupt();
+				t.join(timeoutMillis);
+			}
+		}
+
+		void offer(LearningBatch batch) {
+			if (batch.ids.length == 0) {
+				return;
+			}
+			synchronized (flushLock) {
+				enqueued++;
+			}
+			while (!queue.offer(batch)) {
+				// 满了丢最旧的，保证广播线程不阻塞
+				if (queue.poll() != null) {
+					dropped.increment();
+					done(1);
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+			List<LearningBatch> group = new ArrayList<LearningBatch>(groupSize);
+			while (!Thread.currentThread().isInterrupted()) {
+				try {
+					group.add(queue.take());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+				queue.drainTo(group, groupSize - 1);
+				try {
+					write(group);
+				} catch (RuntimeException e) {
+					logger.log(Level.WARNING, "Learning of {1} broadcasts failed: {2}",
+							new Object[]{TaskManager.getCurrentTick(), group.size(), e});
+				} finally {
+					done(group.size());
+					group.clear();
+				}
+			}
+		}
+
+		private void write(List<LearningBatch> group) {
+			int learnt = 0;
+			try (Transaction tx = graphDb.beginTx()) {
+				for (LearningBatch batch : group) {
+					if (batch.broadcast == lastBroadcast || Arrays.equals(batch.ids, lastIds)) {
+						continue;
+					}
+					lastBroadcast = batch.broadcast;
+					lastIds = batch.ids;
+					for (int id : batch.ids) {
+						org.neo4j.graphdb.Node node;
+						try {
+							node = tx.getNodeById(id);
+						} catch (NotFoundException e) {
+							// 非图谱节点，不学习
+							continue;
+						}
+						if (isSingleNode(node)) {
+							// 当前新场景建模，与learn()一致，建模定下之前不新建节点和边
+							learnt++;
+						}
+					}
+				}
+				tx.commit();
+			}
+			logger.log(Level.FINE, "Learnt {1} nodes of {2} broadcasts, {3} dropped so far",
+					new Object[]{TaskManager.getCurrentTick(), learnt, group.size(), dropped.sum()});
+		}
+
+		/*
+		 * Whether specified node is a single node, not an existing structure.
+		 */
+		private boolean isSingleNode(org.neo4j.graphdb.Node node) {
+			// 必须是单节点，不能是现成场景等结构，才能创建场景，后期场景亦可嵌套
+			for (Label lb : node.getLabels()) {
+				if (STRUCTURE_LABELS.contains(lb.name())) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private void done(int count) {
+			synchronized (flushLock) {
+				processed += count;
+				flushLock.notifyAll();
+			}
+		}
+
+		boolean flush(long timeoutMillis) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + timeoutMillis;
+			synchronized (flushLock) {
+				long target = enqueued;
+				while (processed < target) {
+					long left = deadline - System.currentTimeMillis();
+					if (left <= 0) {
+						return false;
+					}
+					flushLock.wait(left);
+				}
+			}
+			return true;
+		}
+	}
+
 	@Override
 	public void decayModule(long ticks) {
 		pamNodeStructure.decayNodeStructure(ticks);
@@ -524,30 +1352,75 @@ public class PAMemoryImpl extends FrameworkModuleImpl
 //	public static int k = 0;
 	@Override
 	public void excite(String object, double amount, String from) {
+		ExcitationLog.Writer recorder = excitationRecorder;
+		if (recorder != null) {
+			recorder.record(ExcitationLog.EXCITE, TaskManager.getCurrentTick(), object, amount, from);
+		}
 		Linkable linkable = getNode(object);
 
 		if (linkable == null) {
 			// 模态+场景+意象=三节点都要出现在无意识buffer
 			// 如果只是取场景，又难联想到相关，太唯一+太确定，联想相关又可能爆炸
-			linkable = pamNodeStructure.getNeoNode(object);
+			linkable = loadNode(object);
 
 			// 查各感知节点
 			// 感知节点，方案1：模态做场景标签，一个光秃秃的起点，查还需要标签，联动曲折
 			// 方案2：模态与场景边链接，有外联动，模态本身可自行关联其他
 			// pam查询大都通过点边联动，而非标签
 //			linkable = NeoUtil.getNodeFrom(object,from);
-
-			if (linkable != null) {
-				// 首次执行
-				// 上面linkable和节点本身激活为0，这里激活也为0
-				addDefaultNode((Node) linkable);	// todo 性能、逻辑优化
-			}
 		}
-		receiveExcitation(linkable, amount, from);
+		// 已按excite录过，不再重复录
+		doReceiveExcitation(linkable, amount, from);
 	}
 
 	@Override	// 兴奋与激活不同，兴奋来自探测到的信息，激活是后续
 	public void receiveExcitation(Linkable pl, double amount, String from) {
+		ExcitationLog.Writer recorder = excitationRecorder;
+		if (recorder != null && pl != null) {
+			recorder.record(ExcitationLog.RECEIVE, TaskManager.getCurrentTick(), pl.getName(), amount, from);
+		}
+		doReceiveExcitation(pl, amount, from);
+	}
+
+	/**
+	 * Starts recording every {@link #excite(String, double, String)} and
+	 * {@link #receiveExcitation(Linkable, double, String)} call to specified file,
+	 * replacing the file and any running recording.
+	 * @param path file to write
+	 * @return whether recording started
+	 */
+	public boolean startRecording(String path) {
+		try {
+			ExcitationLog.Writer old = excitationRecorder;
+			excitationRecorder = new ExcitationLog.Writer(Paths.get(path));
+			if (old != null) {
+				old.close();
+			}
+			return true;
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Cannot record excitations to {1}: {2}",
+					new Object[]{TaskManager.getCurrentTick(), path, e});
+			return false;
+		}
+	}
+
+	/**
+	 * Stops recording and closes the log.
+	 */
+	public void stopRecording() {
+		ExcitationLog.Writer old = excitationRecorder;
+		excitationRecorder = null;
+		if (old != null) {
+			try {
+				old.close();
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Cannot close excitation log: {1}",
+						new Object[]{TaskManager.getCurrentTick(), e});
+			}
+		}
+	}
+
+	private void doReceiveExcitation(Linkable pl, double amount, String from) {
 		if (pl instanceof PamLink) {
 			logger.log(Level.WARNING, "Does not support pam links yet",
 					TaskManager.getCurrentTick());
@@ -564,6 +1437,7 @@ public class PAMemoryImpl extends FrameworkModuleImpl
 		PamNode linkable = (PamNode) pamNodeStructure.getNode(pl.getExtendedId());
 
 		if (linkable != null) {
+			pamMetrics.excitations.increment();
 
 			if(logger.isLoggable(Level.FINEST)){
 				logger.log(Level.FINEST, "{1} receives excitation of: {2}",
@@ -572,15 +1446,7 @@ public class PAMemoryImpl extends FrameworkModuleImpl
 			}
 			addSite(linkable);
 
-			double ww = 1.0;
-//			try (Transaction tx = graphDb.beginTx()) {
-//				try (Result result0 = tx.execute("match (n:死) return n", NeoUtil.parameters)) {
-//					ww = (double) linkable.getNodeProxy(tx,"weight").getProperty("weight");
-//				}
-//				tx.commit();
-//			}
-
-			ww = (double) linkable.getProperty("weight");
+			double ww = getNodeWeight(linkable);
 
 			linkable.setActivation(ww*amount);
 
@@ -589,46 +1455,232 @@ public class PAMemoryImpl extends FrameworkModuleImpl
 			// 这里修改linkable里的激活值，节点本身激活值为0，amount就是激活值
 			ExcitationTask task = new ExcitationTask(excitationTaskTicksPerRun,
 					linkable, amount, this);
-			taskSpawner.addTask(task);
+			spawn(task);
 		} else {
 			logger.log(Level.WARNING, "Cannot find pamnode: {1}", new Object[] {
 					TaskManager.getCurrentTick(), pl });
 		}
 	}
 
+	/**
+	 * Returns the cached "weight" of specified node, reading the property on a miss.
+	 * @param n a {@link PamNode}
+	 * @return weight of the node
+	 */
+	private double getNodeWeight(Node n) {
+		double ww = pamNodeStructure.getWeight(n.getNodeId());
+		if (Double.isNaN(ww)) {
+			ww = (double) n.getProperty("weight");
+			pamNodeStructure.index(n);
+			pamNodeStructure.setWeight(n.getNodeId(), ww);
+		}
+		return ww;
+	}
+
+	/**
+	 * Loads the node with specified name into PAM on first touch: copied from the
+	 * {@link SharedPamGraph} if this PAM follows one and it has the node, otherwise looked
+	 * up in the {@link PamGraphStore}. Every lookup by name of a node missing from PAM
+	 * goes through here, so a follower sees the shared graph first.
+	 * 首次触及，先共享基图，再长期图存储
+	 * @param name the node name
+	 * @return the node added to PAM, null if neither has it
+	 */
+	protected Node loadNode(String name) {
+		Node proto = sharedGraph != null ? sharedGraph.getNode(name) : null;
+		if (proto == null) {
+			proto = graphStore.getNodeByName(name);
+		}
+		// 首次执行，节点本身激活为0
+		return proto == null ? null : addDefaultNode(proto);	// todo 性能、逻辑优化
+	}
+
+	/*
+	 * Copies the outgoing links of specified node, and their sinks, from the shared graph
+	 * into this PAM once, so propagation sees them. The shared prototypes are never
+	 * handed out, only copied by the add methods of the node structure.
+	 */
+	private void materializeLinks(Node pn) {
+		if (!materializedNodes.add(pn.getNodeId())) {
+			return;
+		}
+		for (Link proto : sharedGraph.getLinksOfSource(pn.getNodeId())) {
+			Node sink = (Node) proto.getSink();
+			if (!pamNodeStructure.containsNode(sink.getNodeId())) {
+				addDefaultNode(sink);
+			}
+			if (!pamNodeStructure.containsLink(proto.getExtendedId())) {
+				addDefaultLink(proto);
+			}
+		}
+	}
+
+	/**
+	 * Re-reads the "weight" property of specified node into the weight column.
+	 * Must be called whenever the weight of the node changes.
+	 * 权重变化时调用，刷新权重列
+	 * @param n the node whose weight changed
+	 */
+	public void refreshNodeWeight(Node n) {
+		Object w = n.getProperty("weight");
+		pamNodeStructure.index(n);
+		if (w instanceof Number) {
+			pamNodeStructure.setWeight(n.getNodeId(), ((Number) w).doubleValue());
+		} else {
+			pamNodeStructure.setWeight(n.getNodeId(), Double.NaN);
+		}
+	}
+
+	/*
+	 * Returns the shared String form of specified broadcast cycle, for the String valued
+	 * bcastid and lastAct of PamNode, formatted once per cycle.
+	 */
+	private String getCycleName(long cycle) {
+		Map.Entry<Long, String> name = cycleName;
+		if (name == null || name.getKey() != cycle) {
+			name = new AbstractMap.SimpleImmutableEntry<Long, String>(cycle, String.valueOf(cycle));
+			cycleName = name;
+		}
+		return name.getValue();
+	}
+
+	/**
+	 * Returns the broadcast cycle in which specified node was last activated by propagation.
+	 * 最后激活周期，整数比较
+	 * @param n a node
+	 * @return the broadcast cycle stamp, -1 if never activated
+	 */
+	public long getLastActCycle(Node n) {
+		return pamNodeStructure.getLastActCycle(n.getNodeId());
+	}
+
+	/**
+	 * @param n a node
+	 * @param cycle a broadcast cycle
+	 * @return whether the node was last activated in specified cycle
+	 */
+	public boolean isActivatedInCycle(Node n, long cycle) {
+		return pamNodeStructure.getLastActCycle(n.getNodeId()) == cycle;
+	}
+
+	/**
+	 * @param n a node
+	 * @return whether the node was activated in the current broadcast cycle
+	 */
+	public boolean isActivatedThisCycle(Node n) {
+		return isActivatedInCycle(n, csmNs.getBroadSceneCount() + 1);
+	}
+
 	private void addSite(PamNode linkable) {
-		ALifeWorld world = (ALifeWorld) getEnvironment().getModuleContent();
-		ALifeObject agent = world.getObject("agent");
-		Object o = agent.getAttribute("direction");
-
-		char direction = (Character)o;
-		Cell cell = (Cell) agent.getContainer();
-		int x = cell.getXCoordinate();
-		int y = cell.getYCoordinate();
-        int x0 = x; // 中介
-        int y0 = y;
-		switch (direction){
-			case 'N': y--;break;
-			case 'S': y++;break;
-			case 'E': x++;break;
-			case 'W': x--;break;
-		}
-		String name = linkable.getName();
-
-        if(name.equals("rockFront")){
-            if (x>=0 && x < world.getWidth() && y>=0 && y<world.getHeight()) {
-                // 貌似只有石头需要预测位置，其他都是智能体当前位置即可，
-                // 石头不可以进入，石头在哪就标记在哪
-                linkable.setLocation(x + "_" + y);
-            }else {
-            	// 石头超界？
-				linkable.setLocation(x0 + "_" + y0);
-				System.out.println("rockFront？？？？？---------------------------------------");
-			}
-        }else {
-        	// 空和出界都可以存当前位置，表示当前位置遇到了
+		if (environment == null) {
+			// 无环境（基准测试等），不记地点
+			return;
+		}
+		AgentPose pose = getAgentPose();
+		// 貌似只有石头需要预测位置，其他都是智能体当前位置即可，
+		// 石头不可以进入，石头在哪就标记在哪
+		if (linkable.getName().equals("rockFront")) {
+			if (pose.frontInWorld) {
+				setNodeLocation(linkable, pose.front, pose.frontName);
+			} else {
+				// 石头超界？
+				setNodeLocation(linkable, pose.site, pose.siteName);
+				logger.log(Level.FINE, "rockFront is out of the world at {1}",
+						new Object[]{TaskManager.getCurrentTick(), pose.frontName});
+			}
+		} else {
+			// 空和出界都可以存当前位置，表示当前位置遇到了
 			// 空本身可以进入，当前位置空则保存空，当前空和下个格空都可
-			linkable.setLocation(x0 + "_" + y0);
+			setNodeLocation(linkable, pose.site, pose.siteName);
+		}
+	}
+
+	private void setNodeLocation(PamNode linkable, int location, String locationName) {
+		linkable.setLocation(locationName);
+		pamNodeStructure.setLocation(linkable.getNodeId(), location);
+	}
+
+	/**
+	 * Returns the site where the node with specified id was last excited.
+	 * @param nodeId id of a {@link PamNode}
+	 * @return the packed location, see {@link #packLocation(int, int)}, or {@link Integer#MIN_VALUE} if unknown
+	 */
+	public int getNodeLocation(int nodeId) {
+		return pamNodeStructure.getLocation(nodeId);
+	}
+
+	/**
+	 * Packs a cell coordinate into one int, x in the high and y in the low 16 bits.
+	 * @param x x coordinate
+	 * @param y y coordinate
+	 * @return packed location
+	 */
+	public static int packLocation(int x, int y) {
+		return (x << 16) | (y & 0xFFFF);
+	}
+
+	/**
+	 * @param location a location packed by {@link #packLocation(int, int)}
+	 * @return the x coordinate
+	 */
+	public static int locationX(int location) {
+		return location >> 16;
+	}
+
+	/**
+	 * @param location a location packed by {@link #packLocation(int, int)}
+	 * @return the y coordinate
+	 */
+	public static int locationY(int location) {
+		return (short) location;
+	}
+
+	/**
+	 * Returns the agent pose of the current tick, querying the {@link ALifeWorld}
+	 * only on the first call of each tick.
+	 * 每个tick只查一次环境，激发时复用
+	 */
+	private AgentPose getAgentPose() {
+		long tick = TaskManager.getCurrentTick();
+		AgentPose pose = agentPose;
+		if (pose == null || pose.tick != tick) {
+			ALifeWorld world = (ALifeWorld) environment.getModuleContent();
+			pose = new AgentPose(tick, world, world.getObject("agent"));
+			agentPose = pose;
+		}
+		return pose;
+	}
+
+	/**
+	 * Position and direction of the agent at one tick, with the site names formatted once.
+	 */
+	private static class AgentPose {
+		private final long tick;
+		private final ObjectContainer container;
+		private final int site;
+		private final String siteName;
+		private final int front;
+		private final String frontName;
+		private final boolean frontInWorld;
+
+		private AgentPose(long tick, ALifeWorld world, ALifeObject agent) {
+			this.tick = tick;
+			char direction = (Character) agent.getAttribute("direction");
+			container = agent.getContainer();
+			Cell cell = (Cell) container;
+			int x = cell.getXCoordinate();
+			int y = cell.getYCoordinate();
+			site = packLocation(x, y);
+			siteName = x + "_" + y;
+			switch (direction){
+				case 'N': y--;break;
+				case 'S': y++;break;
+				case 'E': x++;break;
+				case 'W': x--;break;
+			}
+			front = packLocation(x, y);
+			frontName = x + "_" + y;
+			frontInWorld = x >= 0 && x < world.getWidth() && y >= 0 && y < world.getHeight();
 		}
 	}
 
@@ -647,19 +1699,23 @@ public class PAMemoryImpl extends FrameworkModuleImpl
 
 	@Override	// todo 与nars入口整合，整合memory和ns，点边和concept
 	public void propagateActivationToParents( Node pn, int deep, String from) {
+		pamMetrics.recordDepth(deep);
 		double currentActivation = pn.getActivation();
 		String pname = pn.getName();
 		String sname = "";
 		Node sink;
 
 		putMap(pn, pname);
+		pamNodeStructure.observeActivation(pn);
 
 //		if (from.equals("varscene") || from.equals("varisa")) {
 //			pn.setActivation(pn.getActivation() + 0.3);
 ////			System.out.println(pn.getName() + "-----------激活后来是------" + pn.getActivation());
 //		}
 
-		String bcastid = String.valueOf(csmNs.getBroadSceneCount() + 1);
+		long bcast = csmNs.getBroadSceneCount() + 1;
+		// 周期字符串每周期只生成一次，各节点共用
+		String bcastid = getCycleName(bcast);
 		// 以下几个参数，只要激活到这里，无论是否激活下去，都更新
 		// 设置周期，在广播时统一
 		pn.setBcastid(bcastid);
@@ -715,13 +1771,15 @@ public class PAMemoryImpl extends FrameworkModuleImpl
 //			pn.setFromsceneid();
 
 			// 激活开始，往后的激活都有sink把三元组头部加入了
-			pamListeners.get(0).receivePercept(pn, ModuleName.NonGraph);
+			routePercept(pn, ModuleName.NonGraph);
 			// 感官输入，加入内容备选buffer
-			pamListeners.get(0).receivePercept(pn, ModuleName.ConcentGraph);
+			routePercept(pn, ModuleName.ConcentGraph);
 		}
 //		pamNodeStructure.addNode(pn,true);
 		pamNodeStructure.addNode(pn, "PamNodeImpl");
 //		pamNodeStructure.addDefaultNode(pn);
+		pamNodeStructure.setLastActCycle(pn.getNodeId(), bcast);
+		long tick = TaskManager.getCurrentTick();
 
 		boolean isover = false;
 		// todo 思维控制+注意力，buffer调控，主链路+次分支
@@ -740,6 +1798,10 @@ public class PAMemoryImpl extends FrameworkModuleImpl
 //		if ((currentActivation >= propagateActivationThreshold && deep < 6)) {
 		if (isover) {
 			deep++;
+			if (refractoryTicks > 0) {
+				// 真正往下传递才记传递时刻，不应期以此为准
+				pamNodeStructure.setFiredTick(pn.getNodeId(), tick);
+			}
 
 			// todo 专门的情绪感觉模块，特定self子图，长链关联到当前场景，
 			//  场景子图=注意+实例化+推理+情绪+动机，特定话语对特定场景对不对，
@@ -753,14 +1815,13 @@ public class PAMemoryImpl extends FrameworkModuleImpl
 			boolean isExists = false;
 			String fromlinktype = pn.getFromLinkType();
 
-			Set<Link> parentLinkSet = new HashSet<>();
-			// 多线程，列表修改，报错，加锁貌似也不行
+			int fanout = 0;
 
-			if (pname.equals("ft111") || sname.equals("ft111")) {
-				System.out.println("---------ft111-----------sink---------------");
+			if (sharedGraph != null) {
+				materializeLinks(pn);
 			}
-
-			parentLinkSet = pamNodeStructure.getConnectedSinks(pn);
+			// 遍历CSR快照的行，循环中加边不影响遍历
+			Collection<Link> parentLinkSet = pamNodeStructure.getOutgoingLinks(pn);
 
 			// todo 查找出来的也添加到子图，这里相当于无意识子图，不广播，但包含感知信息
 			// todo 区分意识和无意识部分，不是所有都要广播，加上动机+融入推荐交互
@@ -769,6 +1830,9 @@ public class PAMemoryImpl extends FrameworkModuleImpl
 			for (Link parent : parentLinkSet) {
 				sink = (Node) parent.getSink();
 				sname = sink.getName();
+				if (pamTrace.isWatched(pname) || pamTrace.isWatched(sname)) {
+					trace(PamTrace.EventType.WATCH, sink.getNodeId(), pname + " -> " + sname);
+				}
 				// 避免循环激活，todo 非循环环状激活避免
 				if (pn.getFromnodeid() == sink.getNodeId()) {
 					continue;
@@ -779,12 +1843,22 @@ public class PAMemoryImpl extends FrameworkModuleImpl
 //					continue;
 //				}
 
-				Node checkSink = nonNs.getNode(sink.getExtendedId());
-				if(checkSink != null && checkSink.getActivation() >= 0.98){
-					System.out.println("----单传递不应期----跳过---------------" + sname);
+				// 单传递不应期，sink刚传递过则跳过
+				if (isRefractory(sink, tick)) {
+					pamMetrics.refractorySkips.increment();
+					if (isTraced(PamTrace.EventType.SKIP_REFRACTORY)) {
+						trace(PamTrace.EventType.SKIP_REFRACTORY, sink.getNodeId(), sname);
+					}
 					continue;
 				}
 
+				// 本周期已从别的路径到达，激活并入已有访问，照常分发，只是不再扩散子树
+				boolean merged = mergeVisits && !pamNodeStructure.markVisited(sink, bcast);
+				if (merged) {
+					sink.setActivation(Math.min(1.0, sink.getActivation() + amountToPropagate));
+					pamMetrics.mergedVisits.increment();
+				}
+
 				putMap(sink, sname);
 				// 重设fromnodeid，避免循环激活
 				parent.getSource().setFromnodeid(pn.getFromnodeid());
@@ -815,7 +1889,14 @@ public class PAMemoryImpl extends FrameworkModuleImpl
 				double linkincentive = 0.1;
 				if (pcate.equals("欲求") || pcate.equals("顺承")) {
 //						linkincentive = (Double) parent.getLinkProxy().getProperty("incentive");
-					linkincentive = (Double) parent.getProperty("incentive");
+					Object incentive = parent.getProperty("incentive");
+					if (incentive instanceof Number) {
+						linkincentive = ((Number) incentive).doubleValue();
+					} else {
+						// 图谱数据有误，告警后按默认激励继续
+						logger.log(Level.WARNING, "Link {1} has no numeric incentive: {2}, using {3}",
+								new Object[]{TaskManager.getCurrentTick(), parent, incentive, linkincentive});
+					}
 				}
 				double pnincentive = pn.getIncentiveSalience();
 
@@ -829,18 +1910,20 @@ public class PAMemoryImpl extends FrameworkModuleImpl
 					case "欲求":
 						sink.setIncentiveSalience(linkincentive);
 						parent.getSink().setIncentiveSalience(linkincentive);
-						pamListeners.get(0).receivePercept(pn, ModuleName.FeelGraph);
+						routePercept(pn, ModuleName.FeelGraph);
 						// 内隐动机，感觉--欲求场景整体。加入buffer利于跨周期，与意识同理
 						iswant = true;
-						System.out.println("欲求-------------- " + sname + "-------------" + linkincentive);
-						pamListeners.get(0).receivePercept(pn, ModuleName.GoalGraph);
-						pamListeners.get(0).receivePercept(sink, ModuleName.GoalGraph);
-						pamListeners.get(0).receivePercept(parent, ModuleName.GoalGraph);
+						if (isTraced(PamTrace.EventType.PROPAGATE)) {
+							trace(PamTrace.EventType.PROPAGATE, sink.getNodeId(), "欲求 " + sname + " " + linkincentive);
+						}
+						routePercept(pn, ModuleName.GoalGraph);
+						routePercept(sink, ModuleName.GoalGraph);
+						routePercept(parent, ModuleName.GoalGraph);
 						Set<Link> linkSet0 = NeoUtil.getSomeLinks(sink, null, null, null, null);
 						for (Link link : linkSet0) {
 							// 动作和内容都加入，以便判定跨越式计划对应动作，具体内容根据实际场景
-							pamListeners.get(0).receivePercept(link.getSource(), ModuleName.GoalGraph);
-							pamListeners.get(0).receivePercept(link, ModuleName.GoalGraph);
+							routePercept(link.getSource(), ModuleName.GoalGraph);
+							routePercept(link, ModuleName.GoalGraph);
 						}
 						break;
 					case "子类":
@@ -866,8 +1949,8 @@ public class PAMemoryImpl extends FrameworkModuleImpl
 							}
 
 //							pamListeners.get(0).receivePercept(pn,ModuleName.SeqGraph);
-							pamListeners.get(0).receivePercept(sink, ModuleName.SeqGraph);
-							pamListeners.get(0).receivePercept(parent, ModuleName.SeqGraph);
+							routePercept(sink, ModuleName.SeqGraph);
+							routePercept(parent, ModuleName.SeqGraph);
 //							}
 						}
 						break;
@@ -884,9 +1967,9 @@ public class PAMemoryImpl extends FrameworkModuleImpl
 						// 计划里有无都算激励，非备选动作不经过动作选择，但可评估时序价值
 						// 方法论buffer是否需要再论，还有其他各类型，认知层，非本能层
 						if (seqNs.containsNode(pn) && seqNs.containsNode(sink)) {
-							pamListeners.get(0).receivePercept(pn, ModuleName.SeqGraph);
-							pamListeners.get(0).receivePercept(sink, ModuleName.SeqGraph);
-							pamListeners.get(0).receivePercept(parent, ModuleName.SeqGraph);
+							routePercept(pn, ModuleName.SeqGraph);
+							routePercept(sink, ModuleName.SeqGraph);
+							routePercept(parent, ModuleName.SeqGraph);
 						} else if (seqNs.containsNode(pn) || seqNs.containsNode(sink)) {
 //							System.out.println("并非头尾都在计划buffer中----||||--" + parent.toString());
 							// 无序激活，有些时序没来得及加入，则需要识别当前顺承链接是否进入
@@ -897,22 +1980,22 @@ public class PAMemoryImpl extends FrameworkModuleImpl
 						break;
 					case "isa":// 场景内变量实例化 todo 变量外属性化=语句化
 						if (AgentStarter.scenemap.containsKey(pname) && AgentStarter.scenemap.containsKey(sname)) {
-							if(taskSpawner.getTasks().size() > 1000){
+							if(getPendingTaskCount() > 1000){
 								continue;
 							}
 							if (AgentStarter.varscenemap.containsKey(sname)) {
 								isisascence = true;
 								// 变量式激活延伸和蕴含网，都含isa，可以放在一起讨论？
 								IsaPamTask isaPamTask = new IsaPamTask(pn,sink,this,pamNodeStructure,seqNs, "normal");
-								taskSpawner.addTask(isaPamTask);
+								spawn(isaPamTask);
 							}
 						}
 						// todo 会循环激活，目前只有蕴含链开头有isa？
 						if (fromlinktype.equals("isa") || fromlinktype.equals("蕴含") || deep == 1) {
 							// 按是否联通判断，并加入语义网，非语义网的会孤立
-							pamListeners.get(0).receivePercept(pn, ModuleName.ConcentGraph);
-							pamListeners.get(0).receivePercept(sink, ModuleName.ConcentGraph);
-							pamListeners.get(0).receivePercept(parent, ModuleName.ConcentGraph);
+							routePercept(pn, ModuleName.ConcentGraph);
+							routePercept(sink, ModuleName.ConcentGraph);
+							routePercept(parent, ModuleName.ConcentGraph);
 							sink.setActivation(sink.getActivation() + 0.1);
 							if(deep == 6){
 								deep = 5; // 理解链可继续延伸，并还能扩散一度，像蜈蚣
@@ -933,17 +2016,17 @@ public class PAMemoryImpl extends FrameworkModuleImpl
 //							break;
 //						}
 					case "顺接":
-						pamListeners.get(0).receivePercept(pn, ModuleName.GrammarGraph);
-						pamListeners.get(0).receivePercept(sink, ModuleName.GrammarGraph);
-						pamListeners.get(0).receivePercept(parent, ModuleName.GrammarGraph);
+						routePercept(pn, ModuleName.GrammarGraph);
+						routePercept(sink, ModuleName.GrammarGraph);
+						routePercept(parent, ModuleName.GrammarGraph);
 						break;
 					case "蕴含":
 						if (fromlinktype.equals("isa") || fromlinktype.equals("蕴含") || deep == 1) {
 							// 按是否联通判断，并加入语义网，非语义网的会孤立
 							// 要属性齐全才能继续往下传，不能只有光杆蕴含链
-							pamListeners.get(0).receivePercept(pn, ModuleName.ConcentGraph);
-							pamListeners.get(0).receivePercept(sink, ModuleName.ConcentGraph);
-							pamListeners.get(0).receivePercept(parent, ModuleName.ConcentGraph);
+							routePercept(pn, ModuleName.ConcentGraph);
+							routePercept(sink, ModuleName.ConcentGraph);
+							routePercept(parent, ModuleName.ConcentGraph);
 							sink.setActivation(sink.getActivation() + 0.1);
 							if(deep == 6){
 								deep = 5; // 理解链可继续延伸，并还能扩散，像蜈蚣。保留强扩散的影响能力=开小差
@@ -959,9 +2042,9 @@ public class PAMemoryImpl extends FrameworkModuleImpl
 						// 只要头节点在时序buffer，这几类边就肯定会进入buffer，顺承则不一定
 						if (seqNs.containsNode(pn) && pnincentive > 0) {
 							sink.setIncentiveSalience(pnincentive);
-							pamListeners.get(0).receivePercept(pn, ModuleName.SeqGraph);
-							pamListeners.get(0).receivePercept(sink, ModuleName.SeqGraph);
-							pamListeners.get(0).receivePercept(parent, ModuleName.SeqGraph);
+							routePercept(pn, ModuleName.SeqGraph);
+							routePercept(sink, ModuleName.SeqGraph);
+							routePercept(parent, ModuleName.SeqGraph);
 						}
 						break;
 					default:
@@ -970,8 +2053,8 @@ public class PAMemoryImpl extends FrameworkModuleImpl
 				// 语义网边类型较杂
 //				if (conNs.containsNode(sink) || conNs.containsNode(pn)) {
 				if (deep == 1) {
-					pamListeners.get(0).receivePercept(sink, ModuleName.ConcentGraph);
-					pamListeners.get(0).receivePercept(parent, ModuleName.ConcentGraph);
+					routePercept(sink, ModuleName.ConcentGraph);
+					routePercept(parent, ModuleName.ConcentGraph);
 				}
 				// 如果不是当前实例化，而sink是有变量场景，则判断是否已经实例化，有则激活
 				// 当前实例化已经激活一遍，无需再激活，局限于单条isa链接，顺承、蕴含、动机放行
@@ -990,7 +2073,7 @@ public class PAMemoryImpl extends FrameworkModuleImpl
 						// 无意识没有sink，则没有link
 						for (Link l : nonNs.getLinksOfSink(sname)) {
 							if (csmNs.containsNode(l.getSource().getExtendedId())) {
-								pamListeners.get(0).receivePercept(l, ModuleName.CurrentSM);
+								routePercept(l, ModuleName.CurrentSM);
 							}
 						}
 					} else if (isExists && lofssize == 1) {
@@ -998,61 +2081,64 @@ public class PAMemoryImpl extends FrameworkModuleImpl
 					}
 
 					if (isin) {// 三个要齐全才显示完
-						pamListeners.get(0).receivePercept(pn, ModuleName.CurrentSM);
-						pamListeners.get(0).receivePercept(sink, ModuleName.CurrentSM);
-						pamListeners.get(0).receivePercept(parent, ModuleName.CurrentSM);
+						routePercept(pn, ModuleName.CurrentSM);
+						routePercept(sink, ModuleName.CurrentSM);
+						routePercept(parent, ModuleName.CurrentSM);
 					}
 				}
 				// 无论能不能过阈值，都加入睡前缓存+无意识buffer，激活值偏低
-				pamListeners.get(0).receivePercept(sink, ModuleName.NonGraph);
-				pamListeners.get(0).receivePercept(parent, ModuleName.NonGraph);
-
-				if (pname.equals("事物")) {
-					System.out.println("事物的fromid --------" + pn.getFromnodeid());
-				}
+				routePercept(sink, ModuleName.NonGraph);
+				routePercept(parent, ModuleName.NonGraph);
 
 				// 设置来源id，来源场景id为pn自带
 				sink.setFromsceneid(pn.getFromsceneid());
 				sink.setFromnodeid(pn.getNodeId());
 				sink.setFromLinkType(parent.getCategory().getName());
 
-				if (!pcate.equals("顺接")) {
+				if (!pcate.equals("顺接") && !merged) {
 					// 传递一层一条一个线程
 					propagateActivation(sink, (PamLink) parent, amountToPropagate, deep, from);
+					fanout++;
 				}
 			}
+			pamMetrics.fanout.record(fanout);
+		}
+		// 本次传播缓冲的跨区消息
+		if (partitions != null) {
+			partitions.flush();
 		}
 	}
 
+	/*
+	 * Whether specified sink is in its refractory period: it propagated less than
+	 * refractoryTicks ago or, when that is off, it is still almost fully active in NonGraph.
+	 */
+	private boolean isRefractory(Node sink, long tick) {
+		if (refractoryTicks > 0) {
+			return pamNodeStructure.isRefractory(sink.getNodeId(), tick, refractoryTicks);
+		}
+		Node checkSink = nonNs.getNode(sink.getExtendedId());
+		return checkSink != null && checkSink.getActivation() >= 0.98;
+	}
+
 	private void getSucc( Node pn, Node sink, Link parent) {
-		String query = "match (n:场景)<-[r:时序]-(m:场景)-[r0:时序]->(i:场景) where n.name = \'" 
-				+ pn.getName() + "\'  and i.name = \'" + sink.getName()  + "\' return m";
-		Link link0;
-		try (Transaction tx0 = graphDb.beginTx()) {
-			try (Result result0 = tx0.execute(query, NeoUtil.parameters)) {
-				Map<String, Object> row0;
-				String scenename;
-				while (result0.hasNext()) {
-					System.out.println("query = " + query);
-					row0 = result0.next();
-					org.neo4j.graphdb.Node scene;
-					for (String key0 : result0.columns()) {
-						scene = (org.neo4j.graphdb.Node) row0.get(key0);
-						scenename = (String) scene.getProperty("name");
-						if(seqNs.containsNode(((Long)scene.getId()).intValue())){
-							Node n = seqNs.getNeoNode(scenename);
-							if(n.getIncentiveSalience() > 0){
-								pn.setIncentiveSalience(n.getIncentiveSalience());
-								sink.setIncentiveSalience(n.getIncentiveSalience());
-								pamListeners.get(0).receivePercept(pn, ModuleName.SeqGraph);
-								pamListeners.get(0).receivePercept(sink, ModuleName.SeqGraph);
-								pamListeners.get(0).receivePercept(parent, ModuleName.SeqGraph);
-							}
-						}
-					}
+		if (isTraced(PamTrace.EventType.QUERY)) {
+			trace(PamTrace.EventType.QUERY, pn.getNodeId(), "时序 " + pn.getName() + " " + sink.getName());
+		}
+		long start = System.nanoTime();
+		List<Node> scenes = graphStore.getSequenceParents(pn.getName(), sink.getName());
+		pamMetrics.queryLatency.record(System.nanoTime() - start);
+		for (Node scene : scenes) {
+			if(seqNs.containsNode(scene.getNodeId())){
+				Node n = seqNs.getNeoNode(scene.getName());
+				if(n.getIncentiveSalience() > 0){
+					pn.setIncentiveSalience(n.getIncentiveSalience());
+					sink.setIncentiveSalience(n.getIncentiveSalience());
+					routePercept(pn, ModuleName.SeqGraph);
+					routePercept(sink, ModuleName.SeqGraph);
+					routePercept(parent, ModuleName.SeqGraph);
 				}
 			}
-			tx0.commit();
 		}
 	}
 	// todo 认知执行语句化，在类似nars时序上执行，尽量不用线程？语句只是小图程，直接替换并改元组即可，大图程还需线程
@@ -1063,35 +2149,29 @@ public class PAMemoryImpl extends FrameworkModuleImpl
 		Node source = link.getSource();
 		putMap(sink,sink.getName());
 		// 从时序首开始执行，递归查找到最上头时序 
-		String query = "match (m:场景)-[r:时序首]->(i:场景) where m.name = \'" + sink.getName() + "\' return r";
-		System.out.println("query = " + query);
+		if (isTraced(PamTrace.EventType.QUERY)) {
+			trace(PamTrace.EventType.QUERY, sink.getNodeId(), "时序首 " + sink.getName());
+		}
 		Link link0 = null;
-		try (Transaction tx0 = graphDb.beginTx()) {
-			try (Result result0 = tx0.execute(query, NeoUtil.parameters)) {
-				Map<String, Object> row0;
-				while (result0.hasNext()) {
-					row0 = result0.next();
-					Relationship actre;
-					for (String key0 : result0.columns()) {
-						actre = (Relationship) row0.get(key0);
-
-						link0 = NeoUtil.CastNeoToLidaLink(actre,null);
-						Node toNode = (Node)link0.getSink();
-						// 每个时序分别加入计划，以备执行，头节点已有，不用加入
-						pamListeners.get(0).receivePercept(toNode,ModuleName.SeqGraph);
-						pamListeners.get(0).receivePercept(link0, ModuleName.SeqGraph);
-
-						toNode.setIncentiveSalience(sink.getIncentiveSalience());
-
-						System.out.println("时序首---|||-" + link0.toString());
-
-						// 即使当前层时序已经在这里找到并执行，还需要激活非时序节点，如满足和else？
-						// 只需找到时序就行，时序节点具体是什么类型，再根据类型执行，往下就往下，如满足和else
-//						propagateActivation(toNode, (PamLink) link0, 1.0, 1, "varmindplan");
-					}
-				}
+		long start = System.nanoTime();
+		List<Link> heads = graphStore.getSequenceHeads(sink.getName());
+		pamMetrics.queryLatency.record(System.nanoTime() - start);
+		for (Link head : heads) {
+			link0 = head;
+			Node toNode = (Node)link0.getSink();
+			// 每个时序分别加入计划，以备执行，头节点已有，不用加入
+			routePercept(toNode,ModuleName.SeqGraph);
+			routePercept(link0, ModuleName.SeqGraph);
+
+			toNode.setIncentiveSalience(sink.getIncentiveSalience());
+
+			if (isTraced(PamTrace.EventType.QUERY)) {
+				trace(PamTrace.EventType.QUERY, toNode.getNodeId(), "时序首 " + link0);
 			}
-			tx0.commit();
+
+			// 即使当前层时序已经在这里找到并执行，还需要激活非时序节点，如满足和else？
+			// 只需找到时序就行，时序节点具体是什么类型，再根据类型执行，往下就往下，如满足和else
+//			propagateActivation(toNode, (PamLink) link0, 1.0, 1, "varmindplan");
 		}
 
 		if(link0 != null) {
@@ -1110,16 +2190,16 @@ public class PAMemoryImpl extends FrameworkModuleImpl
 			if(AgentStarter.varscenemap.containsKey(sink.getName())){
 
 				DoMindActTask doMindActTask = new DoMindActTask(sink,source,this, seqNs, sceneNs);
-				taskSpawner.addTask(doMindActTask);
+				spawn(doMindActTask);
 
 			}else if(AgentStarter.ifelsemap.containsKey(sink.getName())){
 
                 SelectTreeTask selectTreeTask = new SelectTreeTask(link, this, sceneNs);
-                taskSpawner.addTask(selectTreeTask);
+                spawn(selectTreeTask);
 
 			}else {
 				SimpleSceneTask simpleSceneTask = new SimpleSceneTask(sink,source,this,sceneNs);
-				taskSpawner.addTask(simpleSceneTask);
+				spawn(simpleSceneTask);
 			}
 
 //			doSucc(link, sink, source);
@@ -1131,6 +2211,11 @@ public class PAMemoryImpl extends FrameworkModuleImpl
 	// 点边分类，模拟硬件立体，buffer阶段性分类，扩散后匹配框架，利于结构性推理
 	@Override
 	public void putMap( Node node, String name) {
+		// 已分类的节点按稠密下标记一位，再次访问时跳过标签遍历
+		int idx = pamNodeStructure.indexOf(node.getNodeId());
+		if (idx != PamNodeStructure.NO_INDEX && pamNodeStructure.isClassified(idx)) {
+			return;
+		}
 		Long core;
 		for (String lb: node.getLabels()){
 			switch (lb){
@@ -1181,6 +2266,30 @@ public class PAMemoryImpl extends FrameworkModuleImpl
 				default:break;
 			}
 		}
+		if (idx != PamNodeStructure.NO_INDEX) {
+			pamNodeStructure.setClassified(idx, true);
+		}
+	}
+
+	/**
+	 * Forgets the label classification of the node with specified id, so the next
+	 * {@link #putMap(Node, String)} walks its labels again.
+	 * Must be called when the labels of the node change in the graph db.
+	 * 图谱中节点标签变更时调用，下次putMap重新分类
+	 * @param nodeId id of the node whose labels changed
+	 */
+	public void invalidateNodeLabels(int nodeId) {
+		int idx = pamNodeStructure.indexOf(nodeId);
+		if (idx != PamNodeStructure.NO_INDEX) {
+			pamNodeStructure.setClassified(idx, false);
+		}
+	}
+
+	/**
+	 * Forgets the label classification of all nodes.
+	 */
+	public void clearLabelCache() {
+		pamNodeStructure.clearClassified();
 	}
 
 	private void retrieve(Link parent) {
@@ -1197,60 +2306,255 @@ public class PAMemoryImpl extends FrameworkModuleImpl
 		// todo 独立线程？
 
 
-		for (Node node: goalNs.getNodes()) {	// todo 动机生成立刻控制注意
-			for (String lb : node.getLabels()) {
-				// todo 实际上约束搜索是广泛且不限模块，纯理解+脑内语言+交流语言+视听想象
-				if (lb.equals("语言生成")) {
-					String nname = node.getName();
-					String sourcename = parent.getSource().getName();
-					int fromnodid = parent.getSource().getFromnodeid();
-//					String query;
-					// 如果是对象，下文非对象，则触发联合搜索
-					if (sourcename.equals("事物")){
-						// 默认找下文，上文被上一周期处理了
-						for (Link l : nonNs.getLinksOfSource(fromnodid)){
-							if (l.getName().equals("fto")){
-								for (Link l0 : nonNs.getLinksOfSource(((Node)l.getSink()).getNodeId())){
-									if (l0.getName().equals("isa")){
-//										fatch(fromnodid, l0);
-									}
-								}
-							}
-						}
-					}else {
+		// todo 动机生成立刻控制注意
+		// todo 实际上约束搜索是广泛且不限模块，纯理解+脑内语言+交流语言+视听想象
+		// 有语言生成目标即可，下面的搜索与具体是哪个目标无关
+		if (getIndexedGoals("语言生成").isEmpty()) {
+			return;
+		}
+		String sourcename = parent.getSource().getName();
+		int fromnodid = parent.getSource().getFromnodeid();
+//		String query;
+		// 如果是对象，下文非对象，则触发联合搜索
+		if (sourcename.equals("事物")){
+			// 默认找下文，上文被上一周期处理了
+			for (Link l : getIndexedLinks(fromnodid, "fto")){
+				for (Link l0 : getIndexedLinks(((Node)l.getSink()).getNodeId(), "isa")){
+//					fatch(fromnodid, l0);
+				}
+			}
+		}else {
 
-					}
+		}
+	}
+
+	/*
+	 * Adds a percept routed to the GoalGraph or NonGraph buffer to the matching index.
+	 */
+	private void indexPercept(Node n, ModuleName buffer) {
+		if (buffer == ModuleName.GoalGraph) {
+			for (String lb : n.getLabels()) {
+				goalsByLabel.computeIfAbsent(lb, k -> ConcurrentHashMap.newKeySet()).add(n);
+			}
+			maybeSweepIndexes();
+		}
+	}
+
+	private void indexPercept(Link l, ModuleName buffer) {
+		if (buffer == ModuleName.NonGraph) {
+			nonLinksBySource.computeIfAbsent(l.getSource().getNodeId(), k -> new ConcurrentHashMap<String, Set<Link>>())
+					.computeIfAbsent(l.getName(), k -> ConcurrentHashMap.newKeySet()).add(l);
+			maybeSweepIndexes();
+		}
+	}
+
+	/*
+	 * Drops the index entries that have left their buffer once more percepts were indexed
+	 * since the last sweep than twice the buffers hold, so the indexes stay proportional
+	 * to the buffers, which evict without telling PAM.
+	 */
+	private void maybeSweepIndexes() {
+		int bound = Math.max(MIN_INDEX_SWEEP, 2 * (nonNs.getLinkCount() + goalNs.getNodeCount()));
+		if (indexedSinceSweep.incrementAndGet() > bound) {
+			indexedSinceSweep.set(0);
+			sweepIndexes();
+		}
+	}
+
+	private void sweepIndexes() {
+		for (Iterator<Set<Node>> it = goalsByLabel.values().iterator(); it.hasNext(); ) {
+			Set<Node> goals = it.next();
+			goals.removeIf(n -> !goalNs.containsNode(n));
+			if (goals.isEmpty()) {
+				it.remove();
+			}
+		}
+		for (Iterator<Map<String, Set<Link>>> it = nonLinksBySource.values().iterator(); it.hasNext(); ) {
+			Map<String, Set<Link>> byName = it.next();
+			for (Iterator<Set<Link>> it0 = byName.values().iterator(); it0.hasNext(); ) {
+				Set<Link> links = it0.next();
+				links.removeIf(l -> !nonNs.containsLink(l));
+				if (links.isEmpty()) {
+					it0.remove();
 				}
 			}
+			if (byName.isEmpty()) {
+				it.remove();
+			}
 		}
 	}
 
-	private void fatch(int fromnodid,  Link l0) {
-		String query = "match p = (n)<-[r:isa]-(m)-[r0:动作]->(i:场景)<-[r1]-(o) where n.name = \'" + 
-				l0.getSink().getName() + "\'  and o.name = \'" + nonNs.getNode(fromnodid).getName() + "\' return i";
-		System.out.println("query = " + query);
-		try (Transaction tx0 = graphDb.beginTx()) {
-			try (Result result0 = tx0.execute(query, NeoUtil.parameters)) {
-				Map<String, Object> row0;
-				while (result0.hasNext()) {
-					row0 = result0.next();
-					org.neo4j.graphdb.Node scene;
-					String scenename;
-					for (String key0 : result0.columns()) {
-						scene = (org.neo4j.graphdb.Node) row0.get(key0);
-						scenename = (String) scene.getProperty("name");
-
-						System.out.println("约束搜索到场景 ----" + scene.getProperty("name"));
-
-						// todo 不硬编码
-						if (!scenename.equals("ft0")) {
-                            sceneNs.setMainNodeId(((Long)scene.getId()).intValue());
-							getSceneNode(NeoUtil.getPamNode(scene,scenename), scenename,false);
+	/*
+	 * Goal nodes with specified label. Entries that have decayed out of goalNs
+	 * are dropped here, so the cost stays proportional to the matches. On a miss goalNs
+	 * is scanned, since other modules add goals that PAM never routed.
+	 * 缓冲衰减移除的节点在查询时顺带清理，未命中则扫描goalNs，其他模块加入的目标也能找到
+	 */
+	private Set<Node> getIndexedGoals(String label) {
+		Set<Node> goals = goalsByLabel.get(label);
+		if (goals != null) {
+			goals.removeIf(n -> !goalNs.containsNode(n));
+			if (!goals.isEmpty()) {
+				return goals;
+			}
+		}
+		Set<Node> found = ConcurrentHashMap.newKeySet();
+		for (Node node : goalNs.getNodes()) {
+			if (node.getLabels().contains(label)) {
+				found.add(node);
+			}
+		}
+		if (found.isEmpty()) {
+			return Collections.emptySet();
+		}
+		goalsByLabel.put(label, found);
+		return found;
+	}
+
+	/*
+	 * Links of NonGraph with specified source node and link name, stale entries dropped.
+	 * On a miss the links of the source in nonNs are checked, for links added by other modules.
+	 */
+	private Set<Link> getIndexedLinks(int sourceId, String name) {
+		Map<String, Set<Link>> byName = nonLinksBySource.get(sourceId);
+		Set<Link> links = byName == null ? null : byName.get(name);
+		if (links != null) {
+			links.removeIf(l -> !nonNs.containsLink(l));
+			if (!links.isEmpty()) {
+				return links;
+			}
+		}
+		Set<Link> found = new HashSet<Link>();
+		Set<Link> ofSource = nonNs.getLinksOfSource(sourceId);
+		if (ofSource != null) {
+			for (Link l : ofSource) {
+				if (name.equals(l.getName())) {
+					found.add(l);
+				}
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Synchronous associative retrieval: returns the k most activated nodes reachable from
+	 * specified seeds along links of specified categories, within a hop and a time budget.
+	 * Runs on the calling thread over PAM's own graph, with a bounded heap, spawns no tasks
+	 * and changes no activation.
+	 * 同步联想检索，不派生任务、不触发传播，用于语言生成等即时取用
+	 * @param seeds nodes to start from, not part of the result
+	 * @param categories names of the link categories to follow, null or empty for all
+	 * @param k maximum number of returned nodes
+	 * @param maxHops maximum distance from the seeds
+	 * @param budgetNanos time budget in nanoseconds, 0 or less for none
+	 * @return the reached nodes, most activated first
+	 */
+	public List<Node> retrieveTopK(Collection<? extends Node> seeds, Set<String> categories,
+								   int k, int maxHops, long budgetNanos) {
+		if (seeds == null || k <= 0) {
+			return new ArrayList<Node>();
+		}
+		long deadline = budgetNanos > 0 ? System.nanoTime() + budgetNanos : Long.MAX_VALUE;
+		boolean anyCategory = categories == null || categories.isEmpty();
+		Comparator<Node> byActivation = Comparator.comparingDouble(Node::getTotalActivation);
+		PriorityQueue<Node> top = new PriorityQueue<Node>(k + 1, byActivation);
+		Set<Integer> visited = new HashSet<Integer>();
+		ArrayDeque<Node> frontier = new ArrayDeque<Node>();
+		for (Node seed : seeds) {
+			if (visited.add(seed.getNodeId())) {
+				frontier.add(seed);
+			}
+		}
+		LinkCsr csr = pamNodeStructure.getCsr();
+		boolean removed = pamNodeStructure.hasRemovedLinks(csr);
+		BitSet allowed = null;
+		if (!anyCategory) {
+			allowed = new BitSet();
+			for (String c : categories) {
+				int ord = pamNodeStructure.getCategoryOrdinal(c);
+				if (ord >= 0) {
+					allowed.set(ord);
+				}
+			}
+		}
+		int expanded = 0;
+		for (int hop = 0; hop < maxHops && !frontier.isEmpty(); hop++) {
+			ArrayDeque<Node> next = new ArrayDeque<Node>();
+			while (!frontier.isEmpty()) {
+				// 每64次扩展查一次时间
+				if ((++expanded & 63) == 0 && System.nanoTime() > deadline) {
+					return drainTopK(top);
+				}
+				Node node = frontier.poll();
+				int row = csr.getRow(pamNodeStructure.indexOf(node.getNodeId()));
+				if (row >= 0) {
+					// 按行顺序扫描，类别用序号比较
+					for (int i = csr.getStart(row); i < csr.getEnd(row); i++) {
+						if (allowed != null && !allowed.get(csr.getCategoryOrdinal(i))) {
+							continue;
+						}
+						Link l = csr.getLink(i);
+						if (removed && !pamNodeStructure.containsLink(l)) {
+							continue;
+						}
+						// 取边自身的终点，下标可能已被复用
+						Linkable snk = l.getSink();
+						if (snk instanceof Node) {
+							visitTopK((Node) snk, k, visited, next, top);
 						}
 					}
 				}
+				for (Link l : pamNodeStructure.getPendingLinks(node)) {
+					if ((anyCategory || categories.contains(l.getCategory().getName()))
+							&& l.getSink() instanceof Node) {
+						visitTopK((Node) l.getSink(), k, visited, next, top);
+					}
+				}
+			}
+			frontier = next;
+		}
+		return drainTopK(top);
+	}
+
+	private void visitTopK(Node sinkNode, int k, Set<Integer> visited, ArrayDeque<Node> next, PriorityQueue<Node> top) {
+		if (!visited.add(sinkNode.getNodeId())) {
+			return;
+		}
+		next.add(sinkNode);
+		if (top.size() < k) {
+			top.add(sinkNode);
+		} else if (sinkNode.getTotalActivation() > top.peek().getTotalActivation()) {
+			top.poll();
+			top.add(sinkNode);
+		}
+	}
+
+	private List<Node> drainTopK(PriorityQueue<Node> top) {
+		List<Node> res = new ArrayList<Node>(top);
+		res.sort(Comparator.comparingDouble(Node::getTotalActivation).reversed());
+		return res;
+	}
+
+	private void fatch(int fromnodid,  Link l0) {
+		String isaname = l0.getSink().getName();
+		String sourcename = nonNs.getNode(fromnodid).getName();
+		if (isTraced(PamTrace.EventType.QUERY)) {
+			trace(PamTrace.EventType.QUERY, fromnodid, "约束搜索 " + isaname + " " + sourcename);
+		}
+		long start = System.nanoTime();
+		List<Node> scenes = graphStore.getActionScenes(isaname, sourcename);
+		pamMetrics.queryLatency.record(System.nanoTime() - start);
+		for (Node scene : scenes) {
+			String scenename = scene.getName();
+			if (isTraced(PamTrace.EventType.QUERY)) {
+				trace(PamTrace.EventType.QUERY, scene.getNodeId(), "约束搜索到场景 " + scenename);
+			}
+
+			// todo 不硬编码
+			if (!scenename.equals("ft0")) {
+				sceneNs.setMainNodeId(scene.getNodeId());
+				getSceneNode(scene, scenename,false);
 			}
-			tx0.commit();
 		}
 	}
 
@@ -1274,129 +2578,193 @@ public class PAMemoryImpl extends FrameworkModuleImpl
 		}else {
 			sceneNs.setMainNodeId(sink.getNodeId());
 		}
-	}
-
-	@Override
-	public void getSceneNode(Node scene, String scenename, boolean isvar) {
-		String query;
-		// 进入场景buffer默认是语言生成或视听想象，普通场景直接通达
-		query = "match (n{name:\'" + scenename + "\'})<-[r]-() return r";
-		try (Transaction tx1 = graphDb.beginTx()) {
-			try (Result result = tx1.execute(query, NeoUtil.parameters)) {
-				int num = 0;
-				while (result.hasNext()) {
-					num++;
-					getScene(result, isvar);
-				}
-				// 有语法被激活，且为主场景，则触发语法框架建模任务，尽量只一次
-				if (num != 0 ) {
-					if(scene.getNodeId() == sceneNs.getMainNodeId()){
-						// 每个场景一个任务，包括子场景？
-						GrammarTask task = new GrammarTask(yufaNs, sceneNs,1,this);
-						taskSpawner.addTask(task);
-					}
-					for(String sceneId : AgentStarter.scenelist){
-						if(sceneId.equals(String.valueOf(scene.getNodeId()))){
-							// 如果接下来的时序执行也激活了，那同样激活语法任务
-							GrammarTask task = new GrammarTask(yufaNs, sceneNs,1,this);
-							taskSpawner.addTask(task);
-						}
-					}
+	}
 
-				}
+	@Override
+	public void getSceneNode(Node scene, String scenename, boolean isvar) {
+		// 进入场景buffer默认是语言生成或视听想象，普通场景直接通达
+		long start = System.nanoTime();
+		// 只计查询本身，逐条处理会递归查子场景
+		List<PamGraphStore.TypedLink> links = graphStore.getIncomingLinks(scenename);
+		pamMetrics.queryLatency.record(System.nanoTime() - start);
+		for (PamGraphStore.TypedLink typed : links) {
+			getScene(typed, isvar);
+		}
+		// 有语法被激活，且为主场景，则触发语法框架建模任务，尽量只一次
+		if (!links.isEmpty()) {
+			if(scene.getNodeId() == sceneNs.getMainNodeId()){
+				// 每个场景一个任务，包括子场景？
+				GrammarTask task = new GrammarTask(yufaNs, sceneNs,1,this);
+				spawn(task);
 			}
-			tx1.commit();
-		}
-	}
-
-	private void getScene( Result result,boolean isvar) {
-		Link link;
-		Map<String, Object> row = result.next();
-		Relationship re;
-		String retype;
-		Node fromNode = null;
-		Node toNode = null;
-		for ( String key : result.columns() ) {
-			re = (Relationship) row.get(key);
-			retype = re.getType().toString();
-			if (retype.equals("顺承")) continue;
-			if (retype.equals("时序")) continue;
-			if (retype.equals("时序首")) continue;
-			if (retype.equals("参数")) continue;
-
-			link = NeoUtil.CastNeoToLidaLink(re,null);
-			toNode = (Node)link.getSink();
-			pamNodeStructure.addNode(toNode,"PamNodeImpl");
-			if(isvar){
-				Map<String,Object> resultmap = getIsaLink(link.getSource(), toNode, link.getCategory(),this);
-				if (resultmap.get("done").equals("yes")){
-					link = (Link) resultmap.get("link");
+			for(String sceneId : AgentStarter.scenelist){
+				if(sceneId.equals(String.valueOf(scene.getNodeId()))){
+					// 如果接下来的时序执行也激活了，那同样激活语法任务
+					GrammarTask task = new GrammarTask(yufaNs, sceneNs,1,this);
+					spawn(task);
 				}
 			}
+		}
+	}
 
-			fromNode = link.getSource();
-			putMap(fromNode,fromNode.getName());
-
-			putMap(toNode,toNode.getName());
-
-			// 如果待生成的是场景，继续纳入场景元素以备生成，
-			// 在场景buffer之后，父场景边语法激活之前？
-			// 避免子场景先集齐语法框架输出，已在语法任务激活时控制
-			if(AgentStarter.scenemap.containsKey(fromNode.getName())){
-				getSceneNode(fromNode,fromNode.getName(),isvar);
+	private void getScene(PamGraphStore.TypedLink typed, boolean isvar) {
+		String retype = typed.getType();
+		if (retype.equals("顺承")) return;
+		if (retype.equals("时序")) return;
+		if (retype.equals("时序首")) return;
+		if (retype.equals("参数")) return;
+
+		Link link = typed.getLink();
+		Node toNode = (Node)link.getSink();
+		pamNodeStructure.addNode(toNode,"PamNodeImpl");
+		if(isvar){
+			Map<String,Object> resultmap = getIsaLink(link.getSource(), toNode, link.getCategory(),this);
+			if (resultmap.get("done").equals("yes")){
+				link = (Link) resultmap.get("link");
 			}
+		}
+
+		Node fromNode = link.getSource();
+		putMap(fromNode,fromNode.getName());
 
-			activGrammarLink(link, retype);
+		putMap(toNode,toNode.getName());
 
+		// 如果待生成的是场景，继续纳入场景元素以备生成，
+		// 在场景buffer之后，父场景边语法激活之前？
+		// 避免子场景先集齐语法框架输出，已在语法任务激活时控制
+		if(AgentStarter.scenemap.containsKey(fromNode.getName())){
+			getSceneNode(fromNode,fromNode.getName(),isvar);
 		}
+
+		activGrammarLink(link, retype);
+	}
+
+	/**
+	 * @return the store the graph lookups of this PAM go to
+	 */
+	public PamGraphStore getGraphStore() {
+		return graphStore;
+	}
+
+	/**
+	 * @param store the store the graph lookups of this PAM go to
+	 */
+	public void setGraphStore(PamGraphStore store) {
+		graphStore = store;
 	}
 
 	@Override
 	public Map getIsaLink(Node node, Node toNode, LinkCategory category, PAMemory pam) {
-		Link link;
 		Map<String,Object> thisresult = new HashMap<>();
-		// 初始化返回map，如果下面没有被更新，则没有新建边，因为没有nowisa
+		// 初始化返回map，如果没有nowisa，则没有新建边
 		thisresult.put("done","no");
-		for (Link l :seqNs.getLinksOfSource(node.getNodeId())){
-			if(l.getName().equals("nowisa")){
-				thisresult = getIsaLink((Node) l.getSink(),toNode,category,pam);
-				if (thisresult.get("done").equals("yes")){
-					// 如果已经新建边，则直接层层返回；
-					return thisresult;
-				}
-				// 上面没有直接返回，证明还没新建边，如果是含变量场景，则替换为现值
-				link = pam.addDefaultLink((Node)l.getSink(), toNode, category);
-				thisresult.put("link",link);
-				thisresult.put("done","yes");
-			}
+		for (Node bound : resolveBindings(node)) {
+			// 含变量场景，替换为现值，每条nowisa分支的末端都连上
+			Link link = pam.addDefaultLink(bound, toNode, category);
+			thisresult.put("link",link);
+			thisresult.put("done","yes");
 		}
 		return thisresult;
 	}
 
+	/**
+	 * Resolves the instances currently bound to specified variable node through "nowisa"
+	 * links of SeqGraph. The links of a node are followed depth first: the first one whose
+	 * sink has "nowisa" links of its own is resolved further and ends the search, the
+	 * sinks without any tried before it are bound as they are. The result is cached until
+	 * the binding version changes, see {@link #invalidateBindings()}.
+	 * @param var a variable node
+	 * @return the bound instances, empty if var has no "nowisa" link
+	 */
+	public List<Node> resolveBindings(Node var) {
+		long version = bindingVersion.get();
+		Binding b = bindings.get(var.getNodeId());
+		if (b != null && b.version == version) {
+			return b.bound;
+		}
+		List<Node> bound = Collections.unmodifiableList(collectBindings(var, new HashSet<Integer>()));
+		// 按查找开始时的版本入表，期间有变更则此项作废
+		bindings.put(var.getNodeId(), new Binding(version, bound));
+		return bound;
+	}
+
+	/*
+	 * Walks the "nowisa" links of specified node in seqNs, skipping sinks already on the
+	 * walked path so cycles end at their entry.
+	 */
+	private List<Node> collectBindings(Node node, Set<Integer> path) {
+		List<Node> bound = new ArrayList<Node>();
+		Set<Link> links = seqNs.getLinksOfSource(node.getNodeId());
+		if (links == null || path.size() > Binding.MAX_CHAIN) {
+			return bound;
+		}
+		path.add(node.getNodeId());
+		for (Link l : links) {
+			if (!"nowisa".equals(l.getName())) {
+				continue;
+			}
+			Node sink = (Node) l.getSink();
+			if (path.contains(sink.getNodeId())) {
+				// nowisa成环，不再回到链上
+				continue;
+			}
+			List<Node> deeper = collectBindings(sink, path);
+			if (!deeper.isEmpty()) {
+				bound.addAll(deeper);
+				break;
+			}
+			bound.add(sink);
+		}
+		path.remove(node.getNodeId());
+		return bound;
+	}
+
+	/*
+	 * One entry of the binding table: the version it was resolved at, and the instances.
+	 */
+	private static class Binding {
+		static final int MAX_CHAIN = 64;
+
+		final long version;
+		final List<Node> bound;
+
+		Binding(long version, List<Node> bound) {
+			this.version = version;
+			this.bound = bound;
+		}
+	}
+
+	/**
+	 * Bumps the binding version so every cached binding is resolved again at its next
+	 * lookup. Routing a "nowisa" link to SeqGraph through this PAM does it already; call
+	 * it when "nowisa" links of SeqGraph are changed or removed by other means.
+	 */
+	public void invalidateBindings() {
+		bindingVersion.incrementAndGet();
+		bindings.clear();
+	}
+
 	@Override
 	public void activGrammarLink(Link link, String retype) {
 		Linkable linkable;
 		// 用于生成的场景，可用来对应语法结构，以场景为准，拼接语法框架=更灵活多变可变
-		pamListeners.get(0).receivePercept(link.getSource(), ModuleName.SceneGraph);
-		pamListeners.get(0).receivePercept((Node)link.getSink(),ModuleName.SceneGraph);
-		pamListeners.get(0).receivePercept(link,ModuleName.SceneGraph);
+		routePercept(link.getSource(), ModuleName.SceneGraph);
+		routePercept((Node)link.getSink(),ModuleName.SceneGraph);
+		routePercept(link,ModuleName.SceneGraph);
 		// 过阈值才通达？不通达不代表没有，无场景无语法=不可能生成=除非直接回忆现有
-		pamListeners.get(0).receivePercept(link.getSource(),ModuleName.CurrentSM);
-		pamListeners.get(0).receivePercept((Node)link.getSink(), ModuleName.CurrentSM);
-		pamListeners.get(0).receivePercept(link, ModuleName.CurrentSM);
+		routePercept(link.getSource(),ModuleName.CurrentSM);
+		routePercept((Node)link.getSink(), ModuleName.CurrentSM);
+		routePercept(link, ModuleName.CurrentSM);
 		// 无意识痕迹
-		pamListeners.get(0).receivePercept(link.getSource(),ModuleName.NonGraph);
-		pamListeners.get(0).receivePercept((Node)link.getSink(), ModuleName.NonGraph);
-		pamListeners.get(0).receivePercept(link, ModuleName.NonGraph);
+		routePercept(link.getSource(),ModuleName.NonGraph);
+		routePercept((Node)link.getSink(), ModuleName.NonGraph);
+		routePercept(link, ModuleName.NonGraph);
 
 		// 从边类型开始激活
 		linkable = getNode(retype);
 
 		if (linkable == null) {
-			linkable = pamNodeStructure.getNeoNode(retype);
-			if (linkable != null) {
-				addDefaultNode((Node) linkable);
-			}
+			linkable = loadNode(retype);
 		}
 		linkable.setActivation(0.8);
 		// 直接从场景激活语法
@@ -1471,27 +2839,164 @@ public class PAMemoryImpl extends FrameworkModuleImpl
     }
 
     // 海马，中短期到长期记忆，睡前是中期到长期？
+	/**
+	 * Consolidates the activation history of PAM nodes into their long-term weights.
+	 * The wall time per tick is measured between runs: while it is well above the
+	 * quietest seen the task only backs off, otherwise it spends a small share of the
+	 * elapsed time on one batch and runs sooner while there is a backlog.
+	 * 忙时退避，闲时按所用时间的小比例巩固
+	 */
 	private class LongMemBackgroundTask extends FrameworkTaskImpl {
+		// 巩固占用的墙钟时间比例
+		private static final double TIME_SHARE = 0.05;
+		private static final double BUSY_FACTOR = 1.5;
+		private final int minTicksPerRun;
+		private final int maxTicksPerRun;
+		private int period;
+		private long lastTick = -1;
+		private long lastNanos;
+		private double quietNanosPerTick = Double.NaN;
+
 		public LongMemBackgroundTask(int ticksPerRun) {
 			super(ticksPerRun);
+			minTicksPerRun = Math.max(1, ticksPerRun);
+			maxTicksPerRun = minTicksPerRun * 16;
+			period = minTicksPerRun;
 		}
+
 		@Override
 		protected void runThisFrameworkTask() {
-			if(attemptLongMemory() != null){
-				setNextTicksPerRun(150);
-//				candidateThreshold = maxActivationThreshold;
-			}else{
-//				candidateThreshold -= thresholdDecayRate;
-//				if(candidateThreshold < 0.0){
-//					candidateThreshold=0.0;
-//				}
+			long tick = TaskManager.getCurrentTick();
+			long now = System.nanoTime();
+			if (lastTick < 0 || tick <= lastTick) {
+				lastTick = tick;
+				lastNanos = now;
+				setNextTicksPerRun(period);
+				return;
 			}
+			long elapsed = now - lastNanos;
+			double nanosPerTick = elapsed / (double) (tick - lastTick);
+			lastTick = tick;
+			lastNanos = now;
+			if (Double.isNaN(quietNanosPerTick) || nanosPerTick < quietNanosPerTick) {
+				quietNanosPerTick = nanosPerTick;
+			} else {
+				// 慢慢上调，适应整体变慢
+				quietNanosPerTick += (nanosPerTick - quietNanosPerTick) * 0.01;
+			}
+			if (nanosPerTick > quietNanosPerTick * BUSY_FACTOR) {
+				period = Math.min(maxTicksPerRun, period * 2);
+			} else {
+				int done = attemptLongMemory(consolidationBatch, (long) (elapsed * TIME_SHARE));
+				period = done >= consolidationBatch ? Math.max(minTicksPerRun, period / 2)
+						: Math.min(maxTicksPerRun, period + minTicksPerRun);
+			}
+			setNextTicksPerRun(period);
 		}
 	}
 
-	private Node attemptLongMemory() {
-		Node node = new NodeImpl();
-		return null;
+	/**
+	 * Persists one batch of weight updates. Scans the node columns from where the last
+	 * batch stopped for nodes whose activation crossed the consolidation threshold since
+	 * they were last consolidated, moves their "weight" pam.consolidation.rate of the way
+	 * to pam.consolidation.maxWeight per crossing, and writes them in one transaction and
+	 * to the nodes in PAM. No transaction is opened when no node crossed.
+	 * @param batchSize the most nodes written
+	 * @param budgetNanos the time after which the scan stops
+	 * @return the number of nodes written
+	 */
+	private int attemptLongMemory(int batchSize, long budgetNanos) {
+		NodeColumns cols = pamNodeStructure.getColumns();
+		int n = Math.min(pamNodeStructure.getIndexedCount(), cols.getCapacity());
+		if (n == 0 || batchSize <= 0) {
+			return 0;
+		}
+		long deadline = System.nanoTime() + budgetNanos;
+		int[] idxs = new int[Math.min(batchSize, n)];
+		int[] counts = new int[idxs.length];
+		double[] weights = new double[idxs.length];
+		int size = 0;
+		int cursor = consolidationCursor;
+		for (int scanned = 0; scanned < n && size < idxs.length; scanned++) {
+			if ((scanned & 63) == 63 && System.nanoTime() > deadline) {
+				break;
+			}
+			int idx = cursor;
+			cursor = cursor + 1 >= n ? 0 : cursor + 1;
+			if (pamNodeStructure.isAbove(idx)) {
+				// 读LIDA衰减后的激活，已落回阈值下的清标记，下次上越再计
+				Node seen = cols.getNode(idx);
+				if (seen != null) {
+					pamNodeStructure.observeActivation(seen);
+				}
+			}
+			int c = pamNodeStructure.takeCrossings(idx);
+			if (c == 0) {
+				continue;
+			}
+			Node node = cols.getNode(idx);
+			if (node == null) {
+				// 已移除的节点
+				continue;
+			}
+			double w = pamNodeStructure.getWeight(node.getNodeId());
+			if (Double.isNaN(w)) {
+				Object p = node.getProperty("weight");
+				if (!(p instanceof Number)) {
+					continue;
+				}
+				w = ((Number) p).doubleValue();
+			}
+			if (w >= consolidationMaxWeight) {
+				continue;
+			}
+			// 向上限饱和增长，多次运行也不超过上限
+			idxs[size] = idx;
+			counts[size] = c;
+			weights[size] = Math.min(consolidationMaxWeight,
+					w + (consolidationMaxWeight - w) * Math.min(1.0, consolidationRate * c));
+			size++;
+		}
+		consolidationCursor = cursor;
+		if (size == 0) {
+			// 无越阈值节点，不开事务
+			return 0;
+		}
+		boolean[] missing = new boolean[size];
+		try (Transaction tx = graphDb.beginTx()) {
+			for (int i = 0; i < size; i++) {
+				try {
+					tx.getNodeById(cols.getNodeId(idxs[i])).setProperty("weight", weights[i]);
+				} catch (NotFoundException e) {
+					missing[i] = true;
+				}
+			}
+			tx.commit();
+		} catch (RuntimeException e) {
+			// 没写进去的越阈值次数放回，下次重试
+			for (int i = 0; i < size; i++) {
+				pamNodeStructure.addCrossings(idxs[i], counts[i]);
+			}
+			logger.log(Level.WARNING, "Consolidation of {1} nodes failed: {2}",
+					new Object[]{TaskManager.getCurrentTick(), size, e});
+			return 0;
+		}
+		int written = 0;
+		for (int i = 0; i < size; i++) {
+			if (missing[i]) {
+				continue;
+			}
+			pamNodeStructure.setWeight(cols.getNodeId(idxs[i]), weights[i]);
+			// 内存节点的属性也更新，refreshNodeWeight不会读回旧值
+			Node node = cols.getNode(idxs[i]);
+			if (node != null) {
+				node.setProperty("weight", weights[i]);
+			}
+			written++;
+		}
+		logger.log(Level.FINE, "Consolidated {1} nodes, cursor at {2}",
+				new Object[]{TaskManager.getCurrentTick(), written, cursor});
+		return written;
 	}
 
 	private int getCurrentstate(int currentstate0, int exsittruth) {
@@ -1617,8 +3122,429 @@ public class PAMemoryImpl extends FrameworkModuleImpl
 		// 新建派生点边，另外处理，不进行大图传播？可进行WM子图传播，与基底相关的非皮层线程、存取不纳入调控=也难调控=含海马
 		// 全拆=低命中+低效率+高能耗+高内存，只为极小的可能利用率=中间数据过多+过杂，不经济+不擅长
 		// nars长句可不拆分查询，推理可保留长句，保存时要命名和拆分，模式子图整体查+整体存
-		PropagationTask task = new PropagationTask(propagationTaskTicksPerRun, link, activation, this, deep, from);
-		taskSpawner.addTask(task);
+		if (partitions != null) {
+			partitions.send(link, activation, deep, from);
+		} else {
+			PropagationTask task = new PropagationTask(propagationTaskTicksPerRun, link, activation, this, deep, from);
+			spawn(task);
+		}
+		pamMetrics.propagationTasks.increment();
+		if (isTraced(PamTrace.EventType.PROPAGATE)) {
+			trace(PamTrace.EventType.PROPAGATE, ((Node) link.getSink()).getNodeId(),
+					link.getSink().getName() + " deep " + deep + " act " + activation);
+		}
+	}
+
+	/**
+	 * Stops the partition threads and closes their transport. Propagation falls back to
+	 * the TaskManager.
+	 */
+	public void shutdownPartitions() {
+		PamPartitions p = partitions;
+		partitions = null;
+		if (p != null) {
+			p.close();
+		}
+	}
+
+	/**
+	 * Experimental hash partitioning of propagation by sink node id, for measuring the message
+	 * traffic a partitioned PAM would have. Each partition runs the propagation of its own
+	 * nodes on a single thread. Propagation between two nodes of the same partition stays on
+	 * that thread; only propagation into another partition, or from outside the partitions,
+	 * is sent as an activation message, buffered per partition and thread and flushed when a
+	 * buffer is full and at the end of each propagation. A partition runs its propagation no
+	 * earlier than pam.propagationTicksPerRun ticks after it arrived, as the TaskManager would.
+	 * <p>
+	 * Limits: storage is not partitioned. All partitions read and write the nodes and links
+	 * of the shared {@link PamNodeStructure}, with no more synchronization than
+	 * PropagationTasks running in the TaskManager pool have, so a node whose sources lie in
+	 * several partitions is updated from several threads. Memory is not bounded per
+	 * partition. The "loopback" transport sends the wire format through local sockets, but
+	 * the receiving side is this same PAM.
+	 * <p>
+	 * No message is dropped. A thread outside the partitions waits while the inbox of the
+	 * target partition holds pam.partitions.inbox batches. Partition threads never wait, two
+	 * of them could wait on each other, so their messages go to an unbounded queue; it grows
+	 * only with the fan-out of work already admitted.
+	 * 试验用：只分传播不分存储，节点共享；外部发送方在收件箱满时等待，分区之间不等待，不丢消息
+	 */
+	private class PamPartitions {
+		private final Partition[] parts;
+		private final int batchSize;
+		private final PartitionTransport transport;
+		private final ThreadLocal<List<ActivationMessage>[]> outbox;
+		// 当前线程所属分区，非分区线程为null
+		private final ThreadLocal<Partition> owner = new ThreadLocal<Partition>();
+		private final AtomicLong stalls = new AtomicLong();
+
+		@SuppressWarnings("unchecked")
+		PamPartitions(int count, int batchSize, int inboxBatches, String transportType, int port)
+				throws IOException {
+			parts = new Partition[count];
+			for (int i = 0; i < count; i++) {
+				parts[i] = new Partition(i, Math.max(1, inboxBatches));
+			}
+			this.batchSize = Math.max(1, batchSize);
+			outbox = ThreadLocal.withInitial(() -> new List[count]);
+			if ("loopback".equals(transportType)) {
+				transport = new LoopbackTransport(port);
+			} else {
+				transport = (partition, batch) -> parts[partition].deliver(batch);
+			}
+		}
+
+		int partitionOf(int nodeId) {
+			// 乘法散列，连续id均匀分散
+			return Math.floorMod(nodeId * 0x9E3779B9, parts.length);
+		}
+
+		void send(PamLink link, double amount, int deep, String from) {
+			int sinkId = ((Node) link.getSink()).getNodeId();
+			int p = partitionOf(sinkId);
+			Partition self = owner.get();
+			if (self != null && self.index == p) {
+				// 同区，本线程排队，不发消息
+				self.schedule(new PropagationTask(propagationTaskTicksPerRun, link, amount,
+						PAMemoryImpl.this, deep, from));
+				return;
+			}
+			List<ActivationMessage>[] box = outbox.get();
+			if (box[p] == null) {
+				box[p] = new ArrayList<ActivationMessage>(batchSize);
+			}
+			box[p].add(new ActivationMessage(link.getSource().getNodeId(), sinkId, amount, deep, from, link));
+			if (box[p].size() >= batchSize) {
+				flush(p, box);
+			}
+		}
+
+		/*
+		 * Sends the messages buffered by the calling thread.
+		 */
+		void flush() {
+			List<ActivationMessage>[] box = outbox.get();
+			for (int p = 0; p < box.length; p++) {
+				if (box[p] != null && !box[p].isEmpty()) {
+					flush(p, box);
+				}
+			}
+		}
+
+		private void flush(int p, List<ActivationMessage>[] box) {
+			List<ActivationMessage> batch = box[p];
+			box[p] = new ArrayList<ActivationMessage>(batchSize);
+			try {
+				transport.send(p, batch);
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Lost {1} activation messages to partition {2}: {3}",
+						new Object[]{TaskManager.getCurrentTick(), batch.size(), p, e});
+			}
+		}
+
+		/*
+		 * The activation messages and propagation queued in all partitions.
+		 */
+		int pending() {
+			int count = 0;
+			for (Partition part : parts) {
+				count += part.queued.get();
+			}
+			return count;
+		}
+
+		/*
+		 * The times a sender from outside the partitions waited for a full inbox.
+		 */
+		long getStalls() {
+			return stalls.get();
+		}
+
+		void close() {
+			try {
+				transport.close();
+			} catch (IOException e) {
+				logger.log(Level.FINE, "Closing partition transport: {1}",
+						new Object[]{TaskManager.getCurrentTick(), e});
+			}
+			for (Partition part : parts) {
+				part.executor.shutdownNow();
+			}
+		}
+
+		/*
+		 * The single-threaded owner of the propagation of one partition.
+		 */
+		private class Partition implements Runnable {
+			private final int index;
+			private final BlockingQueue<List<ActivationMessage>> inbox;
+			// 分区线程发来的，不设上限，免得分区互等
+			private final Queue<List<ActivationMessage>> internal = new ConcurrentLinkedQueue<List<ActivationMessage>>();
+			// 以下仅本分区线程访问
+			private final ArrayDeque<PropagationTask> ready = new ArrayDeque<PropagationTask>();
+			private final ArrayDeque<Long> due = new ArrayDeque<Long>();
+			private final AtomicInteger queued = new AtomicInteger();
+			private final AtomicBoolean scheduled = new AtomicBoolean();
+			private final ScheduledExecutorService executor;
+
+			Partition(int index, int inboxBatches) {
+				this.index = index;
+				inbox = new ArrayBlockingQueue<List<ActivationMessage>>(inboxBatches);
+				executor = Executors.newSingleThreadScheduledExecutor(r -> {
+					Thread t = new Thread(r, "pam-partition-" + index);
+					t.setDaemon(true);
+					return t;
+				});
+			}
+
+			/*
+			 * Called by senders. Partition threads never wait; other threads wait while the
+			 * inbox is full, so the load is pushed back to them instead of dropped.
+			 */
+			void deliver(List<ActivationMessage> batch) {
+				queued.addAndGet(batch.size());
+				if (owner.get() != null) {
+					internal.offer(batch);
+				} else if (!inbox.offer(batch)) {
+					stalls.incrementAndGet();
+					logger.log(Level.WARNING, "Partition {1} inbox full, waiting to deliver {2} activation messages",
+							new Object[]{TaskManager.getCurrentTick(), index, batch.size()});
+					wake(0);
+					try {
+						inbox.put(batch);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						// 被中断也不丢，放入不限量队列
+						internal.offer(batch);
+					}
+				}
+				wake(0);
+			}
+
+			private void wake(long delayMillis) {
+				if (scheduled.compareAndSet(false, true)) {
+					try {
+						if (delayMillis > 0) {
+							executor.schedule(this, delayMillis, TimeUnit.MILLISECONDS);
+						} else {
+							executor.execute(this);
+						}
+					} catch (RejectedExecutionException e) {
+						// 已关闭
+						scheduled.set(false);
+					}
+				}
+			}
+
+			/*
+			 * Queues propagation of this partition to run propagationTicksPerRun ticks from now;
+			 * without a TaskManager ticks do not advance and it runs in the current round.
+			 */
+			void schedule(PropagationTask task) {
+				ready.add(task);
+				due.add(taskSpawner != null ? TaskManager.getCurrentTick() + propagationTaskTicksPerRun : 0L);
+				queued.incrementAndGet();
+			}
+
+			@Override
+			public void run() {
+				owner.set(this);
+				List<ActivationMessage> batch;
+				while ((batch = internal.poll()) != null || (batch = inbox.poll()) != null) {
+					for (ActivationMessage m : batch) {
+						PamLink link = m.link != null ? m.link : resolveLink(m.sourceId, m.sinkId);
+						if (link == null) {
+							queued.decrementAndGet();
+							logger.log(Level.FINE, "No link {1} -> {2} for activation message",
+									new Object[]{TaskManager.getCurrentTick(), m.sourceId, m.sinkId});
+							continue;
+						}
+						// schedule再计一次
+						queued.decrementAndGet();
+						schedule(new PropagationTask(propagationTaskTicksPerRun, link, m.amount,
+								PAMemoryImpl.this, m.deep, m.from));
+					}
+				}
+				long now = TaskManager.getCurrentTick();
+				while (!ready.isEmpty() && due.peek() <= now) {
+					PropagationTask task = ready.poll();
+					due.poll();
+					try {
+						task.call();
+					} catch (Exception e) {
+						logger.log(Level.WARNING, "Propagation in partition {1} failed: {2}",
+								new Object[]{TaskManager.getCurrentTick(), index, e});
+					}
+					queued.decrementAndGet();
+					// 本分区传播产生的跨区消息
+					flush();
+				}
+				scheduled.set(false);
+				if (!inbox.isEmpty() || !internal.isEmpty()) {
+					wake(0);
+				} else if (!ready.isEmpty()) {
+					// 未到期，下一刻再看
+					wake(PARTITION_POLL_MILLIS);
+				}
+			}
+		}
+
+		/*
+		 * Resolves a link of a message that crossed a process boundary.
+		 */
+		private PamLink resolveLink(int sourceId, int sinkId) {
+			Node source = pamNodeStructure.getNode(sourceId);
+			if (source == null) {
+				return null;
+			}
+			for (Link l : pamNodeStructure.getConnectedSinks(source)) {
+				if (l instanceof PamLink && ((Node) l.getSink()).getNodeId() == sinkId) {
+					return (PamLink) l;
+				}
+			}
+			return null;
+		}
+
+		/*
+		 * Sends message batches through a socket per partition on the loopback interface,
+		 * the wire format a partition in another process would receive. Messages carry ids
+		 * only, so the receiving PAM needs the same graph loaded.
+		 * 本机回环，跨进程同样的线格式
+		 */
+		private class LoopbackTransport implements PartitionTransport {
+			private final ServerSocket[] servers;
+			private final DataOutputStream[] outs;
+			private final Socket[] sockets;
+
+			LoopbackTransport(int port) throws IOException {
+				int n = parts.length;
+				servers = new ServerSocket[n];
+				outs = new DataOutputStream[n];
+				sockets = new Socket[n];
+				InetAddress loopback = InetAddress.getLoopbackAddress();
+				for (int i = 0; i < n; i++) {
+					servers[i] = new ServerSocket(port == 0 ? 0 : port + i, 50, loopback);
+					startReceiver(i);
+					sockets[i] = new Socket(loopback, servers[i].getLocalPort());
+					outs[i] = new DataOutputStream(new BufferedOutputStream(sockets[i].getOutputStream()));
+				}
+			}
+
+			@Override
+			public void send(int partition, List<ActivationMessage> batch) throws IOException {
+				DataOutputStream out = outs[partition];
+				synchronized (out) {
+					out.writeInt(batch.size());
+					for (ActivationMessage m : batch) {
+						out.writeInt(m.sourceId);
+						out.writeInt(m.sinkId);
+						out.writeDouble(m.amount);
+						out.writeInt(m.deep);
+						out.writeUTF(m.from == null ? "" : m.from);
+					}
+					out.flush();
+				}
+			}
+
+			private void startReceiver(int partition) {
+				Thread receiver = new Thread(() -> {
+					try (Socket s = servers[partition].accept();
+						 DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()))) {
+						while (true) {
+							int size = in.readInt();
+							List<ActivationMessage> batch = new ArrayList<ActivationMessage>(size);
+							for (int i = 0; i < size; i++) {
+								batch.add(new ActivationMessage(in.readInt(), in.readInt(), in.readDouble(),
+										in.readInt(), in.readUTF(), null));
+							}
+							parts[partition].deliver(batch);
+						}
+					} catch (EOFException e) {
+						// 发送端关闭
+					} catch (IOException e) {
+						logger.log(Level.FINE, "Partition {1} receiver stopped: {2}",
+								new Object[]{TaskManager.getCurrentTick(), partition, e});
+					}
+				}, "pam-partition-receiver-" + partition);
+				receiver.setDaemon(true);
+				receiver.start();
+			}
+
+			@Override
+			public void close() throws IOException {
+				for (int i = 0; i < servers.length; i++) {
+					sockets[i].close();
+					servers[i].close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sends specified node to the {@link PamListener} as a percept of specified buffer.
+	 * 所有分发到各buffer的知觉都经过这里
+	 */
+	private void routePercept(Node n, ModuleName buffer) {
+		if (!pamListeners.isEmpty()) {
+			pamListeners.get(0).receivePercept(n, buffer);
+		}
+		indexPercept(n, buffer);
+		pamMetrics.countPercept(buffer);
+		if (isTraced(PamTrace.EventType.PERCEPT_ROUTED)) {
+			trace(PamTrace.EventType.PERCEPT_ROUTED, n.getNodeId(), buffer + " " + n.getName());
+		}
+	}
+
+	/**
+	 * Sends specified link to the {@link PamListener} as a percept of specified buffer.
+	 */
+	private void routePercept(Link l, ModuleName buffer) {
+		if (!pamListeners.isEmpty()) {
+			pamListeners.get(0).receivePercept(l, buffer);
+		}
+		indexPercept(l, buffer);
+		if (buffer == ModuleName.SeqGraph && "nowisa".equals(l.getName())) {
+			invalidateBindings();
+		}
+		pamMetrics.countPercept(buffer);
+		if (isTraced(PamTrace.EventType.PERCEPT_ROUTED)) {
+			trace(PamTrace.EventType.PERCEPT_ROUTED, l.getSource().getNodeId(), buffer + " " + l);
+		}
+	}
+
+	/*
+	 * Whether an event of specified type should be traced now. Callers check this
+	 * before building the event detail so unsampled events cost nothing.
+	 */
+	private boolean isTraced(PamTrace.EventType type) {
+		if (logger.isLoggable(Level.FINEST)) {
+			return true;
+		}
+		return pamTrace.isTraced(type) && pamTrace.sample();
+	}
+
+	private void trace(PamTrace.EventType type, int nodeId, String detail) {
+		pamTrace.record(type, nodeId, detail);
+		if (logger.isLoggable(Level.FINEST)) {
+			logger.log(Level.FINEST, "{1} {2}: {3}",
+					new Object[]{TaskManager.getCurrentTick(), type, nodeId, detail});
+		}
+	}
+
+	/**
+	 * Returns the trace of the hot path events of this PAM.
+	 * @return the {@link PamTrace}
+	 */
+	public PamTrace getTrace() {
+		return pamTrace;
+	}
+
+	/**
+	 * Returns the metrics of this PAM, also readable as a JMX MBean when pam.metrics.jmx is set.
+	 * @return the {@link PamMetrics}
+	 */
+	public PamMetrics getMetrics() {
+		return pamMetrics;
 	}
 	
 	@Override
@@ -1636,9 +3562,7 @@ public class PAMemoryImpl extends FrameworkModuleImpl
 	}
 
 	private ObjectContainer getObjectContainer() {
-		ALifeWorld world = (ALifeWorld) environment.getModuleContent();
-		ALifeObject agent = world.getObject("agent");
-		return agent.getContainer();
+		return getAgentPose().container;
 	}
 
 	private NodeStructure convertNodeStructure( NodeStructure ns) {
@@ -1764,17 +3688,30 @@ public class PAMemoryImpl extends FrameworkModuleImpl
 	}
 
 	/**
-	 * Returns the perceptThreshold
+	 * Returns the perceptThreshold of this PAM
 	 * @return threshold for a {@link PamLinkable} to be instantiated into a percept
 	 */
-	public static double getPerceptThreshold() {
+	public double getAgentPerceptThreshold() {
 		return perceptThreshold;
 	}
 
+	/**
+	 * Returns the perceptThreshold last set by any PAM, the threshold was shared by all
+	 * agents before it became per PAM.
+	 * @return threshold for a {@link PamLinkable} to be instantiated into a percept
+	 * @deprecated use {@link #getAgentPerceptThreshold()} of the PAM of the agent; this
+	 * accessor is removed in the next release
+	 */
+	@Deprecated
+	public static double getPerceptThreshold() {
+		return lastPerceptThreshold;
+	}
+
 	@Override
 	public void setPerceptThreshold(double t) {
 		if (t >= 0.0 && t <= 1.0) {
-			PAMemoryImpl.perceptThreshold = t;
+			perceptThreshold = t;
+			lastPerceptThreshold = t;
 		} else {
 			logger.log(Level.WARNING,
 							"Percept threshold must in range [0.0, 1.0]. Threshold will not be modified.",
@@ -1785,7 +3722,7 @@ public class PAMemoryImpl extends FrameworkModuleImpl
 	@Override
 	public boolean isOverPerceptThreshold( Linkable l) {
 //		return l.getTotalActivation() > perceptThreshold;
-		return (l.getTotalActivation()+l.getTotalIncentiveSalience())>getPerceptThreshold();
+		return (l.getTotalActivation()+l.getTotalIncentiveSalience())>perceptThreshold;
 	}
 
 	@Override
@@ -1874,27 +3811,6 @@ public class PAMemoryImpl extends FrameworkModuleImpl
 		return result;
 	}
 
-	/**
-	 * Internal implementation of {@link NodeStructureImpl}. Allows {@link Node}
-	 * to be added without copying them. 添加而不复制它们
-	 */
-	public static class PamNodeStructure extends NodeStructureImpl {
-		/**
-		 * @param nodeType
-		 *            Default node type
-		 * @param linkType
-		 *            Default link type
-		 */
-		public PamNodeStructure(String nodeType, String linkType) {
-			super(nodeType, linkType);
-		}
-
-		@Override
-		public Node addNode(Node n, boolean copy) {
-			return super.addNode(n, copy);
-		}
-	}
-
 	@Override
 	public Node getNode(String label) {
 		return nodesByLabel.get(label);// 激活值可视化用
@@ -1902,11 +3818,131 @@ public class PAMemoryImpl extends FrameworkModuleImpl
 	}
 
 	@Override
-	public synchronized void receiveWorkspaceContent(ModuleName n, WorkspaceContent c) {
+	public void receiveWorkspaceContent(ModuleName n, WorkspaceContent c) {
+		pendingContent.offer(new AbstractMap.SimpleImmutableEntry<ModuleName, WorkspaceContent>(n, c));
+	}
+
+	private void processWorkspaceContent(ModuleName n, WorkspaceContent c) {
 		// Todo 知觉联想记忆反馈
 	}
+
 	@Override
-	public synchronized void receivePreafference(NodeStructure addList,NodeStructure deleteList) {
+	public void receivePreafference(NodeStructure addList,NodeStructure deleteList) {
+		pendingPreafference.offer(new NodeStructure[]{addList, deleteList});
+	}
+
+	/*
+	 * Prefetches the nodes action selection expects next, with their one-hop
+	 * neighbourhoods, so their excitation finds them in PAM; evicts the unexpected ones.
+	 * 预期即将出现的知觉，提前从图库载入，感觉兴奋到来时不再首次查库
+	 */
+	private void processPreafference(NodeStructure addList, NodeStructure deleteList) {
+		if (addList != null) {
+			prefetch(addList.getNodes());
+		}
+		if (preafferenceEvict && deleteList != null) {
+			evict(deleteList.getNodes());
+		}
+	}
+
+	/**
+	 * Loads specified nodes and their one-hop neighbourhoods from the graph db into PAM
+	 * in one query, fills their weights, and gives them pam.preafference.activation if set.
+	 * Nodes prefetched before and not removed from PAM since are skipped.
+	 * @param expected the expected nodes, matched by name
+	 * @return the number of nodes whose neighbourhood was loaded
+	 */
+	public int prefetch(Collection<Node> expected) {
+		List<Long> ids = new ArrayList<Long>();
+		List<Node> found = new ArrayList<Node>();
+		for (Node e : expected) {
+			Node node = getNode(e.getName());
+			if (node == null) {
+				node = loadNode(e.getName());
+				if (node == null) {
+					continue;
+				}
+			}
+			found.add(node);
+			int idx = pamNodeStructure.indexOf(node.getNodeId());
+			if (idx == PamNodeStructure.NO_INDEX || pamNodeStructure.markPrefetched(idx)) {
+				ids.add((long) node.getNodeId());
+			}
+		}
+		if (!ids.isEmpty()) {
+			loadNeighbourhoods(ids);
+		}
+		for (Node node : found) {
+			Object w = node.getProperty("weight");
+			if (w instanceof Number && Double.isNaN(pamNodeStructure.getWeight(node.getNodeId()))) {
+				getNodeWeight(node);
+			}
+			if (preafferenceActivation > 0.0 && node.getActivation() < preafferenceActivation) {
+				node.setActivation(preafferenceActivation);
+			}
+		}
+		return ids.size();
+	}
+
+	private void loadNeighbourhoods(List<Long> ids) {
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("ids", ids);
+		// 只取出边，传播沿出边走
+		String query = "match (n)-[r]->(m) where id(n) in $ids return r, m";
+		Set<Long> seen = new HashSet<Long>();
+		List<Node> nodeBatch = new ArrayList<Node>();
+		List<Link> linkBatch = new ArrayList<Link>();
+		long start = System.nanoTime();
+		long queryNanos;
+		try (Transaction tx = graphDb.beginTx()) {
+			try (Result result = tx.execute(query, params)) {
+				while (result.hasNext()) {
+					Map<String, Object> row = result.next();
+					org.neo4j.graphdb.Node neoNode = (org.neo4j.graphdb.Node) row.get("m");
+					if (neoNode != null && seen.add(neoNode.getId())) {
+						nodeBatch.add(NeoUtil.getPamNode(neoNode, (String) neoNode.getProperty("name")));
+					}
+					linkBatch.add(NeoUtil.CastNeoToLidaLink((Relationship) row.get("r"), null));
+				}
+			}
+			// 只计查询本身，不含入PAM
+			queryNanos = System.nanoTime() - start;
+			addPreloadBatch(nodeBatch, linkBatch);
+			tx.commit();
+		}
+		// 批量预取不计入单次查询延迟
+		logger.log(Level.FINE, "Prefetched {1} nodes, {2} links for {3} expected nodes, queried in {4} us",
+				new Object[]{TaskManager.getCurrentTick(), seen.size(), linkBatch.size(), ids.size(),
+						queryNanos / 1000});
+	}
+
+	/**
+	 * Removes specified nodes from PAM unless they are active; an evicted node is
+	 * loaded from the graph db again when it is next excited.
+	 * @param unexpected nodes no longer expected, matched by name
+	 * @return the number of removed nodes
+	 */
+	public int evict(Collection<Node> unexpected) {
+		int count = 0;
+		for (Node e : unexpected) {
+			Node node = getNode(e.getName());
+			if (node != null && evictNode(node)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/*
+	 * Removes specified node from PAM unless it is active.
+	 */
+	private boolean evictNode(Node node) {
+		if (node.getActivation() >= propagateActivationThreshold) {
+			return false;
+		}
+		pamNodeStructure.removeNode(node);
+		nodesByLabel.remove(node.getName(), node);
+		return true;
 	}
 
 	@Override
@@ -0,0 +1,67 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2011 The University of Memphis.  All rights reserved.
+ * This program and the accompanying materials are made available
+ * under the terms of the LIDA Software Framework Non-Commercial License v1.0
+ * which accompanies this distribution, and is available at
+ * http://ccrg.cs.memphis.edu/assets/papers/2010/LIDA-framework-non-commercial-v1.0.pdf
+ *******************************************************************************/
+package edu.memphis.ccrg.lida.pam.bench;
+
+import edu.memphis.ccrg.lida.framework.ModuleName;
+import edu.memphis.ccrg.lida.framework.shared.Link;
+import edu.memphis.ccrg.lida.framework.shared.Node;
+import edu.memphis.ccrg.lida.framework.shared.NodeStructure;
+import edu.memphis.ccrg.lida.pam.PamListener;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link PamListener} that only counts the percepts it receives per buffer, standing in
+ * for the workspace in benchmarks and load tests.
+ */
+public class CountingPamListener implements PamListener {
+	private final Map<String, LongAdder> counts = new ConcurrentHashMap<String, LongAdder>();
+
+	private void count(Object buffer) {
+		counts.computeIfAbsent(String.valueOf(buffer), k -> new LongAdder()).increment();
+	}
+
+	@Override
+	public void receivePercept(NodeStructure ns) {
+		count(null);
+	}
+
+	@Override
+	public void receivePercept(Node n) {
+		count(null);
+	}
+
+	@Override
+	public void receivePercept(Link l) {
+		count(null);
+	}
+
+	@Override
+	public void receivePercept(Node n, ModuleName buffer) {
+		count(buffer);
+	}
+
+	@Override
+	public void receivePercept(Link l, ModuleName buffer) {
+		count(buffer);
+	}
+
+	/**
+	 * @return received percepts keyed by buffer name, "null" for percepts without buffer
+	 */
+	public Map<String, Long> getCounts() {
+		Map<String, Long> res = new TreeMap<String, Long>();
+		for (Map.Entry<String, LongAdder> e : counts.entrySet()) {
+			res.put(e.getKey(), e.getValue().sum());
+		}
+		return res;
+	}
+}
@@ -0,0 +1,109 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2011 The University of Memphis.  All rights reserved.
+ * This program and the accompanying materials are made available
+ * under the terms of the LIDA Software Framework Non-Commercial License v1.0
+ * which accompanies this distribution, and is available at
+ * http://ccrg.cs.memphis.edu/assets/papers/2010/LIDA-framework-non-commercial-v1.0.pdf
+ *******************************************************************************/
+package edu.memphis.ccrg.lida.pam.bench;
+
+import edu.memphis.ccrg.lida.pam.PAMemoryImpl;
+import edu.memphis.ccrg.lida.pam.PamNode;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One {@link PamLoadGenerator} run per invocation on a fresh PAM with a graph built
+ * beforehand: the sustained load of excitations at a fixed tick rate. Besides the run time,
+ * the secondary results give the excitations, the ticks that overran, the excitations that
+ * did not settle, and the bytes allocated per excitation as measured by the generator;
+ * {@code -prof gc} gives the allocation rate of the whole run.
+ * 按tick节拍的持续负载，副指标给出超时tick、未静止兴奋和每次兴奋的分配量
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LoadBenchmark {
+
+	@Param({"10000"})
+	public int nodeCount;
+
+	@Param({"10"})
+	public double excitationsPerTick;
+
+	@Param({"1000"})
+	public int ticks;
+
+	@Param({"1"})
+	public double tickMillis;
+
+	private PAMemoryImpl pam;
+	private List<PamNode> nodes;
+	private PamLoadGenerator load;
+
+	/**
+	 * Secondary results of a run, summed over the invocations of an iteration.
+	 */
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	@State(Scope.Thread)
+	public static class Counters {
+		public long excitations;
+		public long overruns;
+		public long unsettled;
+		public long propagationTasks;
+		public double allocatedBytesPerExcitation;
+
+		@Setup(Level.Iteration)
+		public void clear() {
+			excitations = 0;
+			overruns = 0;
+			unsettled = 0;
+			propagationTasks = 0;
+			allocatedBytesPerExcitation = 0.0;
+		}
+	}
+
+	@Setup(Level.Invocation)
+	public void setUp() {
+		pam = new PAMemoryImpl();
+		pam.init(new HashMap<String, Object>());
+		pam.addPamListener(new CountingPamListener());
+		SyntheticPamGraph graph = new SyntheticPamGraph();
+		graph.setNodeCount(nodeCount);
+		// 建图不计入运行时间
+		nodes = graph.build(pam);
+		load = new PamLoadGenerator();
+		load.setExcitationsPerTick(excitationsPerTick);
+		load.setTicks(ticks);
+		load.setTickMillis(tickMillis);
+	}
+
+	@Benchmark
+	public LoadReport run(Counters counters) throws InterruptedException {
+		LoadReport report = load.run(pam, nodes);
+		counters.excitations += report.getExcitations();
+		counters.overruns += report.getOverruns();
+		counters.unsettled += report.getUnsettled();
+		counters.propagationTasks += report.getPropagationTasks();
+		counters.allocatedBytesPerExcitation = report.getAllocatedBytesPerExcitation();
+		return report;
+	}
+}
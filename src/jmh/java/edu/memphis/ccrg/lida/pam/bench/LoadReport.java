@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2011 The University of Memphis.  All rights reserved.
+ * This program and the accompanying materials are made available
+ * under the terms of the LIDA Software Framework Non-Commercial License v1.0
+ * which accompanies this distribution, and is available at
+ * http://ccrg.cs.memphis.edu/assets/papers/2010/LIDA-framework-non-commercial-v1.0.pdf
+ *******************************************************************************/
+package edu.memphis.ccrg.lida.pam.bench;
+
+import edu.memphis.ccrg.lida.pam.PamMetrics;
+
+/**
+ * Measurements of one {@link PamLoadGenerator} run.
+ */
+public class LoadReport {
+	private final int ticks;
+	private final long excitations;
+	private final long overruns;
+	private final long unsettled;
+	private final long elapsedNanos;
+	private final PamMetrics.Histogram latency;
+	private final long propagationTasks;
+	private final long allocatedBytes;
+
+	LoadReport(int ticks, long excitations, long overruns, long unsettled, long elapsedNanos,
+			PamMetrics.Histogram latency, long propagationTasks, long allocatedBytes) {
+		this.ticks = ticks;
+		this.excitations = excitations;
+		this.overruns = overruns;
+		this.unsettled = unsettled;
+		this.elapsedNanos = elapsedNanos;
+		this.latency = latency;
+		this.propagationTasks = propagationTasks;
+		this.allocatedBytes = allocatedBytes;
+	}
+
+	public long getExcitations() {
+		return excitations;
+	}
+
+	public double getExcitationsPerSecond() {
+		return elapsedNanos == 0 ? 0.0 : excitations * 1e9 / elapsedNanos;
+	}
+
+	/**
+	 * @return ticks whose excitations took longer than the tick
+	 */
+	public long getOverruns() {
+		return overruns;
+	}
+
+	/**
+	 * @return excitations whose propagation had not settled when the wait timed out
+	 */
+	public long getUnsettled() {
+		return unsettled;
+	}
+
+	/**
+	 * @return histogram of the latency of an excitation and its propagation in nanoseconds
+	 */
+	public PamMetrics.Histogram getLatency() {
+		return latency;
+	}
+
+	public long getPropagationTasks() {
+		return propagationTasks;
+	}
+
+	/**
+	 * @return bytes allocated by the thread that ran the load, -1 if the JVM does not tell
+	 */
+	public long getAllocatedBytes() {
+		return allocatedBytes;
+	}
+
+	/**
+	 * @return bytes allocated per excitation, -1 if unknown
+	 */
+	public double getAllocatedBytesPerExcitation() {
+		return allocatedBytes < 0 || excitations == 0 ? -1.0 : (double) allocatedBytes / excitations;
+	}
+
+	/**
+	 * @return bytes allocated per second of the run, -1 if unknown
+	 */
+	public double getAllocationRate() {
+		return allocatedBytes < 0 || elapsedNanos == 0 ? -1.0 : allocatedBytes * 1e9 / elapsedNanos;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("ticks=%d excitations=%d excitations/s=%.1f overruns=%d unsettled=%d "
+						+ "latencyP50=%dus latencyP99=%dus latencyMax=%dus propagationTasks=%d "
+						+ "bytes/excitation=%.0f MB/s=%.1f",
+				ticks, excitations, getExcitationsPerSecond(), overruns, unsettled,
+				latency.getPercentile(50.0) / 1000, latency.getPercentile(99.0) / 1000,
+				latency.getMax() / 1000, propagationTasks, getAllocatedBytesPerExcitation(),
+				getAllocationRate() / (1 << 20));
+	}
+}
@@ -0,0 +1,161 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2011 The University of Memphis.  All rights reserved.
+ * This program and the accompanying materials are made available
+ * under the terms of the LIDA Software Framework Non-Commercial License v1.0
+ * which accompanies this distribution, and is available at
+ * http://ccrg.cs.memphis.edu/assets/papers/2010/LIDA-framework-non-commercial-v1.0.pdf
+ *******************************************************************************/
+package edu.memphis.ccrg.lida.pam.bench;
+
+import edu.memphis.ccrg.lida.pam.PAMemoryImpl;
+import edu.memphis.ccrg.lida.pam.PamMetrics;
+import edu.memphis.ccrg.lida.pam.PamNode;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Load generator for PAM without a full agent: fills PAM with a {@link SyntheticPamGraph}
+ * and excites its nodes at a configurable rate under a fixed tick rate, measuring the
+ * latency of each excitation until the propagation it started has settled, the sustained
+ * throughput and the bytes allocated. PAM runs without environment, workspace buffers or
+ * global workspace, which it tolerates; a {@link CountingPamListener} stands in for the
+ * workspace.
+ * 压测驱动，无需完整agent
+ */
+public class PamLoadGenerator {
+	private SyntheticPamGraph graph = new SyntheticPamGraph();
+	private long tickNanos = 10_000_000L;
+	private double excitationsPerTick = 10.0;
+	private int ticks = 1000;
+	private double amount = 1.0;
+	private long seed = 7L;
+	private long settleMillis = 10000L;
+
+	/**
+	 * @param g the graph shape and category mix to build
+	 */
+	public void setGraph(SyntheticPamGraph g) {
+		graph = g;
+	}
+
+	/**
+	 * @param millis length of a tick
+	 */
+	public void setTickMillis(double millis) {
+		tickNanos = Math.max(0L, (long) (millis * 1_000_000L));
+	}
+
+	/**
+	 * @param rate mean number of excitations per tick, fractions carry over to later ticks
+	 */
+	public void setExcitationsPerTick(double rate) {
+		excitationsPerTick = Math.max(0.0, rate);
+	}
+
+	/**
+	 * @param n number of ticks to run
+	 */
+	public void setTicks(int n) {
+		ticks = Math.max(1, n);
+	}
+
+	/**
+	 * @param a excitation amount
+	 */
+	public void setAmount(double a) {
+		amount = a;
+	}
+
+	/**
+	 * @param s seed of the choice of excited nodes
+	 */
+	public void setSeed(long s) {
+		seed = s;
+	}
+
+	/**
+	 * @param millis the longest time to wait for the propagation of one excitation to settle
+	 */
+	public void setSettleMillis(long millis) {
+		settleMillis = Math.max(0L, millis);
+	}
+
+	/**
+	 * Builds the graph in specified PAM and runs the load. After each excitation the
+	 * propagation it started is run to quiescence, on the calling thread if PAM has no
+	 * TaskSpawner, otherwise by waiting for the TaskManager, see
+	 * {@link PAMemoryImpl#awaitQuiescence(long)}; the mailbox is drained once per tick.
+	 * The allocated bytes are those of the calling thread, which runs all propagation
+	 * when PAM has no TaskSpawner.
+	 * @param pam a fresh, initialized PAM with a listener, e.g. a {@link CountingPamListener}
+	 * @return the measurements
+	 * @throws InterruptedException if interrupted between ticks
+	 */
+	public LoadReport run(PAMemoryImpl pam) throws InterruptedException {
+		return run(pam, graph.build(pam));
+	}
+
+	/**
+	 * Runs the load on nodes already built in specified PAM, see {@link #run(PAMemoryImpl)}.
+	 * @param pam an initialized PAM with a listener
+	 * @param nodes the nodes to excite
+	 * @return the measurements
+	 * @throws InterruptedException if interrupted between ticks
+	 */
+	public LoadReport run(PAMemoryImpl pam, List<PamNode> nodes) throws InterruptedException {
+		PamMetrics.Histogram latency = new PamMetrics.Histogram();
+		PamMetrics metrics = pam.getMetrics();
+		long tasks0 = metrics.getPropagationTaskCount();
+		Random random = new Random(seed);
+		double due = 0.0;
+		long overruns = 0;
+		long excitations = 0;
+		long unsettled = 0;
+		long allocated0 = allocatedBytes();
+		long start = System.nanoTime();
+		for (int t = 0; t < ticks && !nodes.isEmpty(); t++) {
+			long tickStart = start + t * tickNanos;
+			due += excitationsPerTick;
+			for (; due >= 1.0; due -= 1.0) {
+				String name = nodes.get(random.nextInt(nodes.size())).getName();
+				long s = System.nanoTime();
+				pam.excite(name, amount, "load");
+				// 计到传播静止，不只是入队
+				if (!pam.awaitQuiescence(settleMillis)) {
+					unsettled++;
+				}
+				latency.record(System.nanoTime() - s);
+				excitations++;
+			}
+			pam.drainMailbox();
+			long wait = tickStart + tickNanos - System.nanoTime();
+			if (wait > 0) {
+				Thread.sleep(wait / 1_000_000L, (int) (wait % 1_000_000L));
+			} else if (tickNanos > 0) {
+				// 本tick超时，后续tick不补
+				overruns++;
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		long allocated = allocated0 < 0 ? -1L : allocatedBytes() - allocated0;
+		return new LoadReport(ticks, excitations, overruns, unsettled, elapsed, latency,
+				metrics.getPropagationTaskCount() - tasks0, allocated);
+	}
+
+	/*
+	 * Bytes allocated by the calling thread so far, -1 if the JVM does not tell.
+	 */
+	private static long allocatedBytes() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) threads;
+			if (hotspot.isThreadAllocatedMemorySupported() && hotspot.isThreadAllocatedMemoryEnabled()) {
+				return hotspot.getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+		}
+		return -1L;
+	}
+}
@@ -0,0 +1,190 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2011 The University of Memphis.  All rights reserved.
+ * This program and the accompanying materials are made available
+ * under the terms of the LIDA Software Framework Non-Commercial License v1.0
+ * which accompanies this distribution, and is available at
+ * http://ccrg.cs.memphis.edu/assets/papers/2010/LIDA-framework-non-commercial-v1.0.pdf
+ *******************************************************************************/
+package edu.memphis.ccrg.lida.pam.bench;
+
+import edu.memphis.ccrg.lida.framework.shared.Link;
+import edu.memphis.ccrg.lida.framework.shared.LinkCategory;
+import edu.memphis.ccrg.lida.framework.shared.Node;
+import edu.memphis.ccrg.lida.framework.shared.NodeStructure;
+import edu.memphis.ccrg.lida.framework.shared.NodeStructureImpl;
+import edu.memphis.ccrg.lida.globalworkspace.Coalition;
+import edu.memphis.ccrg.lida.pam.InMemoryPamGraphStore;
+import edu.memphis.ccrg.lida.pam.PAMemoryImpl;
+import edu.memphis.ccrg.lida.pam.PamNode;
+
+import java.io.PrintStream;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Runnable self-check of PAM without a full agent or the graph db, through the public API
+ * of PAM only: builds a {@link SyntheticPamGraph} in a standalone PAM and checks that
+ * propagation actually runs and settles, that a checkpoint round-trips, that bindings are
+ * resolved again after {@link PAMemoryImpl#invalidateBindings()}, that every broadcast is
+ * learnt and stamps its count at receipt, and that an {@link InMemoryPamGraphStore}
+ * answers from its base-state copy. Run with the LIDA and Neo4j jars on the classpath;
+ * exits with 1 if a check fails.
+ * 自检，无需完整agent和图库，只用PAM的公开接口
+ */
+public class PamSelfCheck {
+	private final PrintStream out;
+	private int failures;
+
+	public PamSelfCheck(PrintStream out) {
+		this.out = out;
+	}
+
+	public static void main(String[] args) {
+		PamSelfCheck check = new PamSelfCheck(System.out);
+		System.exit(check.run() ? 0 : 1);
+	}
+
+	/**
+	 * Runs every check and prints one line per check.
+	 * @return whether all checks passed
+	 */
+	public boolean run() {
+		failures = 0;
+		runCheck("propagation", this::checkPropagation);
+		runCheck("checkpoint", this::checkCheckpoint);
+		runCheck("bindings", this::checkBindings);
+		runCheck("mailbox", this::checkMailbox);
+		runCheck("memoryStore", this::checkMemoryStore);
+		out.println(failures == 0 ? "all checks passed" : failures + " checks failed");
+		return failures == 0;
+	}
+
+	private interface Check {
+		void run() throws Exception;
+	}
+
+	private void runCheck(String name, Check check) {
+		try {
+			check.run();
+			out.println("PASS " + name);
+		} catch (Throwable e) {
+			failures++;
+			out.println("FAIL " + name + ": " + e);
+		}
+	}
+
+	private static void expect(boolean condition, String message) {
+		if (!condition) {
+			throw new IllegalStateException(message);
+		}
+	}
+
+	/*
+	 * A fresh PAM without TaskSpawner, so spawned tasks run on the calling thread.
+	 */
+	private static PAMemoryImpl newPam() {
+		PAMemoryImpl pam = new PAMemoryImpl();
+		pam.init(new HashMap<String, Object>());
+		pam.addPamListener(new CountingPamListener());
+		return pam;
+	}
+
+	private static SyntheticPamGraph graph(int nodes) {
+		SyntheticPamGraph g = new SyntheticPamGraph();
+		g.setNodeCount(nodes);
+		g.setMeanDegree(3.0);
+		return g;
+	}
+
+	private void checkPropagation() throws Exception {
+		PamLoadGenerator load = new PamLoadGenerator();
+		load.setGraph(graph(200));
+		load.setTicks(20);
+		load.setExcitationsPerTick(2.0);
+		load.setTickMillis(0.0);
+		PAMemoryImpl pam = newPam();
+		LoadReport report = load.run(pam);
+		out.println("  " + report);
+		expect(report.getPropagationTasks() > 0, "no propagation task ran");
+		expect(report.getUnsettled() == 0, report.getUnsettled() + " excitations did not settle");
+		expect(pam.getPendingPropagationCount() == 0, "tasks left after settling");
+	}
+
+	private void checkCheckpoint() throws Exception {
+		PAMemoryImpl pam = newPam();
+		List<PamNode> nodes = graph(100).build(pam);
+		nodes.get(0).setActivation(0.5);
+		Path file = Files.createTempFile("pam", ".ckpt");
+		try {
+			expect(pam.writeCheckpoint(file.toString()), "checkpoint not written");
+			PAMemoryImpl restored = newPam();
+			int count = restored.restoreCheckpoint(file.toString());
+			expect(count == pam.getNodes().size(), "restored " + count + " of " + pam.getNodes().size() + " nodes");
+			expect(restored.getLinks().size() == pam.getLinks().size(),
+					"restored " + restored.getLinks().size() + " of " + pam.getLinks().size() + " links");
+			Node first = restored.getNode(nodes.get(0).getName());
+			expect(first != null && Math.abs(first.getActivation() - 0.5) < 1e-9, "activation not restored");
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+
+	private void checkBindings() {
+		PAMemoryImpl pam = newPam();
+		LinkCategory nowisa = (LinkCategory) pam.addNode("PamNodeImpl", "nowisa");
+		PamNode var = pam.addNode("PamNodeImpl", "var");
+		PamNode mid = pam.addNode("PamNodeImpl", "mid");
+		PamNode a = pam.addNode("PamNodeImpl", "a");
+		PamNode b = pam.addNode("PamNodeImpl", "b");
+		// 无工作区时seqNs是独立的空结构，像SeqGraph的写入方一样直接加边
+		NodeStructureImpl seq = (NodeStructureImpl) pam.seqNs;
+		seq.addDefaultLink(var, mid, nowisa, 1.0, 0.0);
+		Link toA = seq.addDefaultLink(mid, a, nowisa, 1.0, 0.0);
+		pam.invalidateBindings();
+		expect(pam.resolveBindings(var).equals(Collections.singletonList(a)), "var not bound to a");
+		seq.removeLink(toA);
+		seq.addDefaultLink(mid, b, nowisa, 1.0, 0.0);
+		pam.invalidateBindings();
+		expect(pam.resolveBindings(var).equals(Collections.singletonList(b)), "stale binding after rebinding mid");
+		expect(pam.resolveBindings(mid).equals(Collections.singletonList(b)), "mid not bound to b");
+		expect(pam.resolveBindings(b).isEmpty(), "unbound node bound");
+	}
+
+	private void checkMailbox() {
+		PAMemoryImpl pam = newPam();
+		long before = pam.getMetrics().getCoalescedBroadcastCount();
+		for (int i = 0; i < 3; i++) {
+			NodeStructure content = new NodeStructureImpl();
+			content.setBroadSceneCount(i + 1);
+			pam.receiveBroadcast((Coalition) Proxy.newProxyInstance(Coalition.class.getClassLoader(),
+					new Class<?>[]{Coalition.class}, (proxy, method, args) -> content));
+		}
+		expect(pam.getMetrics().getCoalescedBroadcastCount() - before == 2, "broadcasts not coalesced");
+		expect(pam.csmNs.getBroadSceneCount() == 3, "broadcast not stamped at receipt");
+		expect(pam.drainMailbox() == 3, "broadcasts not all learnt");
+	}
+
+	private void checkMemoryStore() {
+		PAMemoryImpl pam = newPam();
+		List<PamNode> nodes = graph(50).build(pam);
+		PamNode hot = nodes.get(0);
+		hot.setActivation(0.9);
+		NodeStructure ns = (NodeStructure) pam.getModuleContent();
+		InMemoryPamGraphStore store = new InMemoryPamGraphStore(ns, null);
+		expect(store.getNodeCount() == ns.getNodeCount(), "store misses nodes");
+		Node copy = store.getNodeByName(hot.getName());
+		expect(copy != null && copy != hot, "lookup did not return a copy");
+		expect(copy.getActivation() == 0.0, "store carries live activation " + copy.getActivation());
+		expect(store.getNodeByName("no such node") == null, "lookup of a missing node");
+		for (Node n : nodes) {
+			Set<Link> in = ns.getLinksOfSink(n.getName());
+			int held = in == null ? 0 : in.size();
+			expect(store.getIncomingLinks(n.getName()).size() == held, "incoming links of " + n.getName());
+		}
+	}
+}
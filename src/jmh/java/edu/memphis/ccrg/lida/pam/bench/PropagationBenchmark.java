@@ -0,0 +1,86 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2011 The University of Memphis.  All rights reserved.
+ * This program and the accompanying materials are made available
+ * under the terms of the LIDA Software Framework Non-Commercial License v1.0
+ * which accompanies this distribution, and is available at
+ * http://ccrg.cs.memphis.edu/assets/papers/2010/LIDA-framework-non-commercial-v1.0.pdf
+ *******************************************************************************/
+package edu.memphis.ccrg.lida.pam.bench;
+
+import edu.memphis.ccrg.lida.pam.PAMemoryImpl;
+import edu.memphis.ccrg.lida.pam.PamNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of one excitation of a {@link SyntheticPamGraph} node until the propagation it
+ * started has settled. PAM has no TaskSpawner, so the whole propagation runs on the
+ * benchmark thread and the allocation reported by the JMH GC profiler
+ * ({@code -prof gc}, gc.alloc.rate.norm) is the allocation per excitation.
+ * 单次兴奋到传播静止的延迟，配合-prof gc看每次兴奋的分配量
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PropagationBenchmark {
+	private static final long SETTLE_MILLIS = 10000L;
+
+	@Param({"1000", "10000"})
+	public int nodeCount;
+
+	@Param({"4"})
+	public double meanDegree;
+
+	// 0为均匀出度，大于1为幂律
+	@Param({"0", "2.5"})
+	public double degreeExponent;
+
+	private PAMemoryImpl pam;
+	private List<PamNode> nodes;
+	private Random random;
+
+	@Setup(Level.Trial)
+	public void setUp() throws InterruptedException {
+		pam = new PAMemoryImpl();
+		pam.init(new HashMap<String, Object>());
+		pam.addPamListener(new CountingPamListener());
+		SyntheticPamGraph graph = new SyntheticPamGraph();
+		graph.setNodeCount(nodeCount);
+		graph.setMeanDegree(meanDegree);
+		graph.setDegreeExponent(degreeExponent);
+		nodes = graph.build(pam);
+		random = new Random(7L);
+		// 传播真的跑起来才测
+		long tasks = pam.getMetrics().getPropagationTaskCount();
+		exciteAndSettle();
+		if (pam.getMetrics().getPropagationTaskCount() == tasks) {
+			throw new IllegalStateException("No propagation task ran for an excitation");
+		}
+	}
+
+	@Benchmark
+	public int exciteAndSettle() throws InterruptedException {
+		String name = nodes.get(random.nextInt(nodes.size())).getName();
+		pam.excite(name, 1.0, "bench");
+		pam.awaitQuiescence(SETTLE_MILLIS);
+		return pam.getPendingPropagationCount();
+	}
+}
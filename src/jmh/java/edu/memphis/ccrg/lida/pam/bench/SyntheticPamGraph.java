@@ -0,0 +1,141 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2011 The University of Memphis.  All rights reserved.
+ * This program and the accompanying materials are made available
+ * under the terms of the LIDA Software Framework Non-Commercial License v1.0
+ * which accompanies this distribution, and is available at
+ * http://ccrg.cs.memphis.edu/assets/papers/2010/LIDA-framework-non-commercial-v1.0.pdf
+ *******************************************************************************/
+package edu.memphis.ccrg.lida.pam.bench;
+
+import edu.memphis.ccrg.lida.framework.shared.LinkCategory;
+import edu.memphis.ccrg.lida.pam.PAMemoryImpl;
+import edu.memphis.ccrg.lida.pam.PamNode;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Builds a synthetic concept graph directly in a {@link PAMemoryImpl}, without the graph db,
+ * so excitation and propagation can be driven by benchmarks and load tests. Without a
+ * TaskSpawner, the spawned tasks are run by {@link PAMemoryImpl#runStandaloneTasks(int)}.
+ * Node names are "syn0" ... "synN", node weights are set as their "weight" property.
+ * 合成概念图，用于基准测试和压测，不依赖图谱
+ */
+public class SyntheticPamGraph {
+	private static final String NODE_TYPE = "PamNodeImpl";
+
+	private int nodeCount = 1000;
+	private double meanDegree = 4.0;
+	private double degreeExponent = 0.0;
+	private double nodeWeight = 1.0;
+	private long seed = 42L;
+	private Map<String, Double> categoryMix = new LinkedHashMap<String, Double>();
+
+	public SyntheticPamGraph() {
+		categoryMix.put("isa", 1.0);
+	}
+
+	/**
+	 * @param n number of nodes
+	 */
+	public void setNodeCount(int n) {
+		nodeCount = Math.max(1, n);
+	}
+
+	/**
+	 * @param d mean out degree of the nodes
+	 */
+	public void setMeanDegree(double d) {
+		meanDegree = Math.max(0.0, d);
+	}
+
+	/**
+	 * @param alpha exponent of the power law out degree distribution,
+	 * values not greater than 1 give every node the mean degree
+	 */
+	public void setDegreeExponent(double alpha) {
+		degreeExponent = alpha;
+	}
+
+	/**
+	 * @param w weight of every node
+	 */
+	public void setNodeWeight(double w) {
+		nodeWeight = w;
+	}
+
+	/**
+	 * @param s seed of the random generator
+	 */
+	public void setSeed(long s) {
+		seed = s;
+	}
+
+	/**
+	 * @param mix relative frequency of each link category name, e.g. "isa", "顺承", "时序"
+	 */
+	public void setCategoryMix(Map<String, Double> mix) {
+		categoryMix = new LinkedHashMap<String, Double>(mix);
+	}
+
+	/**
+	 * Adds the synthetic nodes and links to specified PAM.
+	 * @param pam the PAM to fill
+	 * @return the added nodes
+	 */
+	public List<PamNode> build(PAMemoryImpl pam) {
+		Random random = new Random(seed);
+		List<LinkCategory> categories = new ArrayList<LinkCategory>();
+		double[] cumulative = new double[categoryMix.size()];
+		double sum = 0.0;
+		for (Map.Entry<String, Double> e : categoryMix.entrySet()) {
+			PamNode cat = (PamNode) pam.getNode(e.getKey());
+			if (cat == null) {
+				cat = pam.addNode(NODE_TYPE, e.getKey());
+			}
+			sum += e.getValue();
+			cumulative[categories.size()] = sum;
+			categories.add((LinkCategory) cat);
+		}
+		List<PamNode> nodes = new ArrayList<PamNode>(nodeCount);
+		for (int i = 0; i < nodeCount; i++) {
+			PamNode n = pam.addNode(NODE_TYPE, "syn" + i);
+			if (n != null) {
+				// PAM首次用到权重时读这个属性
+				n.setProperty("weight", nodeWeight);
+				nodes.add(n);
+			}
+		}
+		if (categories.isEmpty() || nodes.size() < 2) {
+			return nodes;
+		}
+		for (PamNode src : nodes) {
+			int degree = Math.min(nextDegree(random), nodes.size() - 1);
+			for (int d = 0; d < degree; d++) {
+				PamNode snk = nodes.get(random.nextInt(nodes.size()));
+				if (snk == src) {
+					continue;
+				}
+				double r = random.nextDouble() * sum;
+				int c = 0;
+				while (c < cumulative.length - 1 && cumulative[c] < r) {
+					c++;
+				}
+				pam.addDefaultLink(src, snk, categories.get(c));
+			}
+		}
+		return nodes;
+	}
+
+	private int nextDegree(Random random) {
+		if (degreeExponent <= 1.0) {
+			return (int) Math.round(meanDegree);
+		}
+		// 幂律分布，均值为meanDegree
+		double min = meanDegree * (degreeExponent - 1) / degreeExponent;
+		return (int) Math.round(min / Math.pow(1.0 - random.nextDouble(), 1.0 / degreeExponent));
+	}
+}
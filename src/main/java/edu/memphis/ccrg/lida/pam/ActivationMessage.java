@@ -0,0 +1,42 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2011 The University of Memphis.  All rights reserved. 
+ * This program and the accompanying materials are made available 
+ * under the terms of the LIDA Software Framework Non-Commercial License v1.0 
+ * which accompanies this distribution, and is available at
+ * http://ccrg.cs.memphis.edu/assets/papers/2010/LIDA-framework-non-commercial-v1.0.pdf
+ *******************************************************************************/
+package edu.memphis.ccrg.lida.pam;
+
+/**
+ * One activation sent along a link to the partition that owns its sink. Messages
+ * crossing a process boundary carry ids only and are resolved against the receiving PAM.
+ */
+public class ActivationMessage {
+	final int sourceId;
+	final int sinkId;
+	final double amount;
+	final int deep;
+	final String from;
+	final PamLink link;
+
+	ActivationMessage(int sourceId, int sinkId, double amount, int deep, String from, PamLink link) {
+		this.sourceId = sourceId;
+		this.sinkId = sinkId;
+		this.amount = amount;
+		this.deep = deep;
+		this.from = from;
+		this.link = link;
+	}
+
+	public int getSourceId() {
+		return sourceId;
+	}
+
+	public int getSinkId() {
+		return sinkId;
+	}
+
+	public double getAmount() {
+		return amount;
+	}
+}
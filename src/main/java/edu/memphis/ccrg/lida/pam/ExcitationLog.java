@@ -0,0 +1,244 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2011 The University of Memphis.  All rights reserved. 
+ * This program and the accompanying materials are made available 
+ * under the terms of the LIDA Software Framework Non-Commercial License v1.0 
+ * which accompanies this distribution, and is available at
+ * http://ccrg.cs.memphis.edu/assets/papers/2010/LIDA-framework-non-commercial-v1.0.pdf
+ *******************************************************************************/
+package edu.memphis.ccrg.lida.pam;
+
+import edu.memphis.ccrg.lida.framework.shared.*;
+import edu.memphis.ccrg.lida.framework.tasks.TaskManager;
+import edu.memphis.ccrg.lida.framework.tasks.TaskSpawner;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Compact binary log of the excitation input of PAM and its replay. Layout, big endian:
+ * header: magic, version; then per call: kind (byte), tick (long), amount (double),
+ * label and from (modified UTF-8, empty for null).
+ * 兴奋日志，录制后可在新PAM上按原节奏或全速回放，对比优化前后
+ */
+public class ExcitationLog {
+	private static final Logger logger = Logger
+			.getLogger(ExcitationLog.class.getCanonicalName());
+
+	static final int MAGIC = 0x50414D52;	// "PAMR"
+	static final short VERSION = 1;
+
+	/** a call of {@link PAMemoryImpl#excite(String, double, String)} */
+	public static final byte EXCITE = 0;
+	/** a call of {@link PAMemoryImpl#receiveExcitation(Linkable, double, String)} */
+	public static final byte RECEIVE = 1;
+
+	static final long DEFAULT_SETTLE_MILLIS = 60000L;
+
+	/**
+	 * Appends calls to a log file.
+	 */
+	public static class Writer implements Closeable {
+		private final DataOutputStream out;
+
+		public Writer(Path path) throws IOException {
+			out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path,
+					StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)));
+			out.writeInt(MAGIC);
+			out.writeShort(VERSION);
+		}
+
+		public synchronized void record(byte kind, long tick, String label, double amount, String from) {
+			try {
+				out.writeByte(kind);
+				out.writeLong(tick);
+				out.writeDouble(amount);
+				out.writeUTF(label == null ? "" : label);
+				out.writeUTF(from == null ? "" : from);
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Cannot record excitation of {1}: {2}",
+						new Object[]{TaskManager.getCurrentTick(), label, e});
+			}
+		}
+
+		@Override
+		public synchronized void close() throws IOException {
+			try {
+				out.flush();
+			} finally {
+				out.close();
+			}
+		}
+	}
+
+	/**
+	 * Outcome of a replay; the counts are differences of the {@link PamMetrics} of the replayed PAM.
+	 */
+	public static class ReplayResult {
+		private final long calls;
+		private final long skipped;
+		private final long ticks;
+		private final long elapsedNanos;
+		private final long propagationTasks;
+		private final long percepts;
+		private final boolean settled;
+
+		ReplayResult(long calls, long skipped, long ticks, long elapsedNanos, long propagationTasks, long percepts,
+				boolean settled) {
+			this.calls = calls;
+			this.skipped = skipped;
+			this.ticks = ticks;
+			this.elapsedNanos = elapsedNanos;
+			this.propagationTasks = propagationTasks;
+			this.percepts = percepts;
+			this.settled = settled;
+		}
+
+		public long getCalls() {
+			return calls;
+		}
+
+		/**
+		 * @return receiveExcitation calls whose node was not in the replayed PAM
+		 */
+		public long getSkipped() {
+			return skipped;
+		}
+
+		public long getTicks() {
+			return ticks;
+		}
+
+		public long getElapsedNanos() {
+			return elapsedNanos;
+		}
+
+		public double getTicksPerSecond() {
+			return elapsedNanos == 0 ? 0.0 : ticks * 1e9 / elapsedNanos;
+		}
+
+		public long getPropagationTasks() {
+			return propagationTasks;
+		}
+
+		public long getPercepts() {
+			return percepts;
+		}
+
+		/**
+		 * @return whether the propagation of the replay settled before the counts were taken
+		 */
+		public boolean isSettled() {
+			return settled;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("calls=%d skipped=%d ticks=%d ticks/s=%.1f propagationTasks=%d percepts=%d settled=%b",
+					calls, skipped, ticks, getTicksPerSecond(), propagationTasks, percepts, settled);
+		}
+	}
+
+	/**
+	 * Feeds a log into specified PAM. At full speed every call is made as soon as the
+	 * previous returns; tick-accurate replay waits until the current tick of the
+	 * TaskManager is as far from the replay start as the recorded tick is from the first.
+	 * receiveExcitation calls are resolved by node name in the replayed PAM. The counts
+	 * are taken once the propagation started by the replay has settled; a PAM without a
+	 * TaskSpawner runs it on the calling thread after every call.
+	 * @param path the log
+	 * @param pam a fresh PAM, initialized like the recorded one
+	 * @param tickAccurate whether to keep the recorded tick spacing
+	 * @return the outcome
+	 * @throws IOException if the log cannot be read
+	 * @throws InterruptedException if interrupted while waiting for a tick
+	 */
+	public static ReplayResult replay(Path path, PAMemoryImpl pam, boolean tickAccurate)
+			throws IOException, InterruptedException {
+		return replay(path, pam, tickAccurate, DEFAULT_SETTLE_MILLIS);
+	}
+
+	/**
+	 * Like {@link #replay(Path, PAMemoryImpl, boolean)}, waiting at most specified time
+	 * for the propagation to settle.
+	 * @param settleMillis the longest time to wait for the propagation to settle
+	 */
+	public static ReplayResult replay(Path path, PAMemoryImpl pam, boolean tickAccurate, long settleMillis)
+			throws IOException, InterruptedException {
+		boolean standalone = !pam.hasTaskSpawner();
+		PamMetrics metrics = pam.getMetrics();
+		long tasks0 = metrics.getPropagationTaskCount();
+		long percepts0 = sum(metrics.getPerceptCounts());
+		long calls = 0;
+		long skipped = 0;
+		long firstTick = Long.MIN_VALUE;
+		long lastTick = 0;
+		long startTick = TaskManager.getCurrentTick();
+		long start = System.nanoTime();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+			if (in.readInt() != MAGIC || in.readShort() != VERSION) {
+				throw new IOException("Not an excitation log: " + path);
+			}
+			while (true) {
+				byte kind;
+				try {
+					kind = in.readByte();
+				} catch (EOFException e) {
+					break;
+				}
+				long tick = in.readLong();
+				double amount = in.readDouble();
+				String label = in.readUTF();
+				String from = in.readUTF();
+				if (firstTick == Long.MIN_VALUE) {
+					firstTick = tick;
+				}
+				lastTick = tick;
+				if (tickAccurate) {
+					while (TaskManager.getCurrentTick() - startTick < tick - firstTick) {
+						Thread.sleep(1);
+					}
+				}
+				calls++;
+				if (kind == EXCITE) {
+					pam.excite(label, amount, from);
+				} else {
+					Node node = pam.getNode(label);
+					if (node == null) {
+						skipped++;
+					} else {
+						pam.receiveExcitation(node, amount, from);
+					}
+				}
+				if (standalone) {
+					// 同步执行本次调用引起的传播，保持调用间的先后
+					pam.awaitQuiescence(settleMillis);
+				}
+			}
+		}
+		// 入队不等于执行完，等传播静止再取指标差
+		boolean settled = pam.awaitQuiescence(settleMillis);
+		long elapsed = System.nanoTime() - start;
+		long ticks = firstTick == Long.MIN_VALUE ? 0 : lastTick - firstTick + 1;
+		return new ReplayResult(calls, skipped, ticks, elapsed,
+				metrics.getPropagationTaskCount() - tasks0, sum(metrics.getPerceptCounts()) - percepts0, settled);
+	}
+
+	private static long sum(Map<String, Long> counts) {
+		long s = 0;
+		for (long c : counts.values()) {
+			s += c;
+		}
+		return s;
+	}
+}
@@ -0,0 +1,177 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2011 The University of Memphis.  All rights reserved. 
+ * This program and the accompanying materials are made available 
+ * under the terms of the LIDA Software Framework Non-Commercial License v1.0 
+ * which accompanies this distribution, and is available at
+ * http://ccrg.cs.memphis.edu/assets/papers/2010/LIDA-framework-non-commercial-v1.0.pdf
+ *******************************************************************************/
+package edu.memphis.ccrg.lida.pam;
+
+import edu.memphis.ccrg.lida.framework.shared.*;
+
+import java.util.*;
+
+/**
+ * {@link PamGraphStore} held in memory: nodes by name, and links by source and by sink
+ * name, copied in their base state from a node structure once. The relationship type of
+ * a link is its category name. Lookups copy what they return, the held graph never
+ * changes.
+ * <p>
+ * The held graph is a snapshot taken when the store is built. A lookup that finds nothing
+ * goes to the fallback store, so nodes and links learnt into the graph db after the copy
+ * are still found, and each such miss is counted in {@link PamMetrics}. A node or link
+ * that is held is returned as it was copied, later changes to it in the graph db, such as
+ * consolidated weights, are not seen.
+ * 纯内存图存储，建时快照，延迟敏感部署不查图库，未命中再查后备存储并计数
+ */
+public class InMemoryPamGraphStore implements PamGraphStore {
+	private static ElementFactory factory = ElementFactory.getInstance();
+	private final Map<String, Node> nodesByName = new HashMap<String, Node>();
+	private final Map<Integer, List<Link>> linksBySource = new HashMap<Integer, List<Link>>();
+	private final Map<String, List<Link>> linksBySink = new HashMap<String, List<Link>>();
+	private final PamGraphStore fallback;
+	private final PamMetrics metrics;
+
+	/**
+	 * @param ns the structure holding the graph, usually PAM after preload
+	 * @param fallback the store asked on a miss, null for none
+	 */
+	public InMemoryPamGraphStore(NodeStructure ns, PamGraphStore fallback) {
+		this(ns, fallback, null);
+	}
+
+	/**
+	 * @param ns the structure holding the graph, usually PAM after preload
+	 * @param fallback the store asked on a miss, null for none
+	 * @param metrics the metrics misses are counted in, null for none
+	 */
+	public InMemoryPamGraphStore(NodeStructure ns, PamGraphStore fallback, PamMetrics metrics) {
+		this.fallback = fallback;
+		this.metrics = metrics;
+		// 建时复制基态，不持有PAM的活对象
+		ns = PamNodeStructure.baseState(ns);
+		for (Node n : ns.getNodes()) {
+			if (n.getName() != null) {
+				nodesByName.put(n.getName(), n);
+			}
+		}
+		for (Link l : ns.getLinks()) {
+			linksBySource.computeIfAbsent(l.getSource().getNodeId(), k -> new ArrayList<Link>()).add(l);
+			linksBySink.computeIfAbsent(l.getSink().getName(), k -> new ArrayList<Link>()).add(l);
+		}
+	}
+
+	public int getNodeCount() {
+		return nodesByName.size();
+	}
+
+	@Override
+	public Node getNodeByName(String name) {
+		Node n = nodesByName.get(name);
+		if (n == null) {
+			return fallback == null ? null : miss().getNodeByName(name);
+		}
+		return copy(n);
+	}
+
+	@Override
+	public List<TypedLink> getIncomingLinks(String name) {
+		List<TypedLink> res = new ArrayList<TypedLink>();
+		for (Link l : in(name)) {
+			res.add(new TypedLink(type(l), copy(l)));
+		}
+		return res.isEmpty() && fallback != null ? miss().getIncomingLinks(name) : res;
+	}
+
+	@Override
+	public List<Node> getSequenceParents(String first, String second) {
+		List<Node> res = new ArrayList<Node>();
+		if (!isScene(nodesByName.get(first)) || !isScene(nodesByName.get(second))) {
+			return fallback == null ? res : miss().getSequenceParents(first, second);
+		}
+		for (Link l : in(first)) {
+			Node m = l.getSource();
+			if ("时序".equals(type(l)) && isScene(m)) {
+				for (Link l0 : out(m)) {
+					if ("时序".equals(type(l0)) && second.equals(l0.getSink().getName())) {
+						res.add(copy(m));
+					}
+				}
+			}
+		}
+		return res.isEmpty() && fallback != null ? miss().getSequenceParents(first, second) : res;
+	}
+
+	@Override
+	public List<Link> getSequenceHeads(String name) {
+		List<Link> res = new ArrayList<Link>();
+		Node m = nodesByName.get(name);
+		if (!isScene(m)) {
+			return fallback == null ? res : miss().getSequenceHeads(name);
+		}
+		for (Link l : out(m)) {
+			if ("时序首".equals(type(l)) && isScene((Node) l.getSink())) {
+				res.add(copy(l));
+			}
+		}
+		return res.isEmpty() && fallback != null ? miss().getSequenceHeads(name) : res;
+	}
+
+	@Override
+	public List<Node> getActionScenes(String isaName, String sourceName) {
+		List<Node> res = new ArrayList<Node>();
+		for (Link r : in(isaName)) {
+			if (!"isa".equals(type(r))) {
+				continue;
+			}
+			for (Link r0 : out(r.getSource())) {
+				Node i = (Node) r0.getSink();
+				if (!"动作".equals(type(r0)) || !isScene(i)) {
+					continue;
+				}
+				for (Link r1 : in(i.getName())) {
+					if (sourceName.equals(r1.getSource().getName())) {
+						res.add(copy(i));
+					}
+				}
+			}
+		}
+		return res.isEmpty() && fallback != null ? miss().getActionScenes(isaName, sourceName) : res;
+	}
+
+	/*
+	 * The fallback store, counting the miss that goes to it.
+	 */
+	private PamGraphStore miss() {
+		if (metrics != null) {
+			metrics.storeFallbacks.increment();
+		}
+		return fallback;
+	}
+
+	private List<Link> in(String name) {
+		List<Link> links = linksBySink.get(name);
+		return links == null ? Collections.<Link>emptyList() : links;
+	}
+
+	private List<Link> out(Node n) {
+		List<Link> links = linksBySource.get(n.getNodeId());
+		return links == null ? Collections.<Link>emptyList() : links;
+	}
+
+	private static String type(Link l) {
+		return l.getCategory().getName();
+	}
+
+	private static boolean isScene(Node n) {
+		return n != null && n.getLabels().contains("场景");
+	}
+
+	private static Node copy(Node n) {
+		return factory.getNode(n, "PamNodeImpl");
+	}
+
+	private static Link copy(Link l) {
+		return factory.getLink("PamLinkImpl", copy(l.getSource()), copy((Node) l.getSink()), l.getCategory(), l);
+	}
+}
@@ -0,0 +1,92 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2011 The University of Memphis.  All rights reserved. 
+ * This program and the accompanying materials are made available 
+ * under the terms of the LIDA Software Framework Non-Commercial License v1.0 
+ * which accompanies this distribution, and is available at
+ * http://ccrg.cs.memphis.edu/assets/papers/2010/LIDA-framework-non-commercial-v1.0.pdf
+ *******************************************************************************/
+package edu.memphis.ccrg.lida.pam;
+
+import edu.memphis.ccrg.lida.framework.shared.*;
+
+/**
+ * Compressed sparse row snapshot of the outgoing links of a {@link PamNodeStructure}.
+ * Rows are numbered breadth first, so nodes linked together sit next to each other;
+ * the links of row r are offsets[r] until offsets[r + 1] in the targets (row of the sink,
+ * -1 if not indexed), categories (category ordinal) and links arrays.
+ * 出边CSR快照，行号按BFS编号，传播时顺序访问
+ */
+public class LinkCsr {
+	static final LinkCsr EMPTY = new LinkCsr(0, new int[0], new int[0], new int[1],
+			new int[0], new int[0], new Link[0], new String[0], 0L);
+
+	final int linkCount;
+	final int[] rowOfIndex;
+	final int[] indexOfRow;
+	final int[] offsets;
+	final int[] targets;
+	final int[] categories;
+	final Link[] links;
+	final String[] categoryNames;
+	// 建快照时的溢出边序号
+	final long seq;
+
+	LinkCsr(int linkCount, int[] rowOfIndex, int[] indexOfRow, int[] offsets, int[] targets,
+			int[] categories, Link[] links, String[] categoryNames, long seq) {
+		this.linkCount = linkCount;
+		this.rowOfIndex = rowOfIndex;
+		this.indexOfRow = indexOfRow;
+		this.offsets = offsets;
+		this.targets = targets;
+		this.categories = categories;
+		this.links = links;
+		this.categoryNames = categoryNames;
+		this.seq = seq;
+	}
+
+	/**
+	 * @param idx a dense node index
+	 * @return its row, -1 if it was not indexed when the snapshot was built
+	 */
+	public int getRow(int idx) {
+		return idx >= 0 && idx < rowOfIndex.length ? rowOfIndex[idx] : -1;
+	}
+
+	/**
+	 * @return the dense node index of specified row
+	 */
+	public int getIndex(int row) {
+		return indexOfRow[row];
+	}
+
+	public int getRowCount() {
+		return offsets.length - 1;
+	}
+
+	public int getStart(int row) {
+		return offsets[row];
+	}
+
+	public int getEnd(int row) {
+		return offsets[row + 1];
+	}
+
+	public int getTarget(int i) {
+		return targets[i];
+	}
+
+	public int getCategoryOrdinal(int i) {
+		return categories[i];
+	}
+
+	/**
+	 * @return the name of the category with specified ordinal
+	 */
+	public String getCategory(int ordinal) {
+		return categoryNames[ordinal];
+	}
+
+	public Link getLink(int i) {
+		return links[i];
+	}
+}
@@ -0,0 +1,103 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2011 The University of Memphis.  All rights reserved. 
+ * This program and the accompanying materials are made available 
+ * under the terms of the LIDA Software Framework Non-Commercial License v1.0 
+ * which accompanies this distribution, and is available at
+ * http://ccrg.cs.memphis.edu/assets/papers/2010/LIDA-framework-non-commercial-v1.0.pdf
+ *******************************************************************************/
+package edu.memphis.ccrg.lida.pam;
+
+import edu.memphis.ccrg.lida.data.NeoUtil;
+import edu.memphis.ccrg.lida.framework.shared.*;
+import edu.memphis.ccrg.lida.framework.shared.Node;
+import org.neo4j.graphdb.*;
+
+import java.util.*;
+
+import static com.warmer.kgmaker.KgmakerApplication.graphDb;
+
+/**
+ * {@link PamGraphStore} on the Neo4j graph db, with parameterized Cypher queries.
+ */
+public class NeoPamGraphStore implements PamGraphStore {
+	private final NodeStructure names;
+
+	/**
+	 * @param names the structure whose getNeoNode looks nodes up by name
+	 */
+	public NeoPamGraphStore(NodeStructure names) {
+		this.names = names;
+	}
+
+	@Override
+	public Node getNodeByName(String name) {
+		return names.getNeoNode(name);
+	}
+
+	@Override
+	public List<TypedLink> getIncomingLinks(String name) {
+		List<TypedLink> res = new ArrayList<TypedLink>();
+		try (Transaction tx = graphDb.beginTx()) {
+			try (Result result = tx.execute("match (n{name:$name})<-[r]-() return r", params("name", name))) {
+				while (result.hasNext()) {
+					Relationship re = (Relationship) result.next().get("r");
+					res.add(new TypedLink(re.getType().toString(), NeoUtil.CastNeoToLidaLink(re, null)));
+				}
+			}
+			tx.commit();
+		}
+		return res;
+	}
+
+	@Override
+	public List<Node> getSequenceParents(String first, String second) {
+		Map<String, Object> params = params("first", first);
+		params.put("second", second);
+		return nodes("match (n:场景)<-[r:时序]-(m:场景)-[r0:时序]->(i:场景) "
+				+ "where n.name = $first and i.name = $second return m", params);
+	}
+
+	@Override
+	public List<Link> getSequenceHeads(String name) {
+		List<Link> res = new ArrayList<Link>();
+		try (Transaction tx = graphDb.beginTx()) {
+			try (Result result = tx.execute("match (m:场景)-[r:时序首]->(i:场景) where m.name = $name return r",
+					params("name", name))) {
+				while (result.hasNext()) {
+					res.add(NeoUtil.CastNeoToLidaLink((Relationship) result.next().get("r"), null));
+				}
+			}
+			tx.commit();
+		}
+		return res;
+	}
+
+	@Override
+	public List<Node> getActionScenes(String isaName, String sourceName) {
+		Map<String, Object> params = params("isa", isaName);
+		params.put("source", sourceName);
+		return nodes("match p = (n)<-[r:isa]-(m)-[r0:动作]->(i:场景)<-[r1]-(o) "
+				+ "where n.name = $isa and o.name = $source return i", params);
+	}
+
+	private static Map<String, Object> params(String key, Object value) {
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put(key, value);
+		return params;
+	}
+
+	private static List<Node> nodes(String query, Map<String, Object> params) {
+		List<Node> res = new ArrayList<Node>();
+		try (Transaction tx = graphDb.beginTx()) {
+			try (Result result = tx.execute(query, params)) {
+				String column = result.columns().get(0);
+				while (result.hasNext()) {
+					org.neo4j.graphdb.Node n = (org.neo4j.graphdb.Node) result.next().get(column);
+					res.add(NeoUtil.getPamNode(n, (String) n.getProperty("name")));
+				}
+			}
+			tx.commit();
+		}
+		return res;
+	}
+}
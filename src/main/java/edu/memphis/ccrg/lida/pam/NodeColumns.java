@@ -0,0 +1,95 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2011 The University of Memphis.  All rights reserved. 
+ * This program and the accompanying materials are made available 
+ * under the terms of the LIDA Software Framework Non-Commercial License v1.0 
+ * which accompanies this distribution, and is available at
+ * http://ccrg.cs.memphis.edu/assets/papers/2010/LIDA-framework-non-commercial-v1.0.pdf
+ *******************************************************************************/
+package edu.memphis.ccrg.lida.pam;
+
+import edu.memphis.ccrg.lida.framework.shared.*;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Parallel primitive arrays of the per-node state PAM owns, indexed by the dense index
+ * of {@link PamNodeStructure}. Node slots and crossings are written under the lock of
+ * the structure; other writes racing with a growth of the columns may be lost, those
+ * columns are caches or marks that are refilled on a miss.
+ * PAM自有节点状态列存
+ */
+public class NodeColumns {
+	final int capacity;
+	final Node[] nodes;
+	final int[] ids;
+	final double[] weight;
+	final int[] location;
+	final long[] lastCycle;
+	final long[] firedTick;
+	final AtomicIntegerArray crossings;
+	// putMap已分类位图
+	final AtomicLongArray classified;
+	// 上次观察时是否在巩固阈值之上
+	final AtomicLongArray above;
+	// 已按预期预取过一跳邻域，节点移除时清
+	final AtomicLongArray prefetched;
+
+	NodeColumns(int capacity) {
+		this.capacity = capacity;
+		nodes = new Node[capacity];
+		ids = new int[capacity];
+		weight = new double[capacity];
+		location = new int[capacity];
+		lastCycle = new long[capacity];
+		firedTick = new long[capacity];
+		crossings = new AtomicIntegerArray(capacity);
+		classified = new AtomicLongArray((capacity + 63) >>> 6);
+		above = new AtomicLongArray((capacity + 63) >>> 6);
+		prefetched = new AtomicLongArray((capacity + 63) >>> 6);
+		Arrays.fill(weight, Double.NaN);
+		Arrays.fill(location, PamNodeStructure.NO_LOCATION);
+		Arrays.fill(lastCycle, -1L);
+		Arrays.fill(firedTick, PamNodeStructure.NEVER_FIRED);
+	}
+
+	private NodeColumns(NodeColumns old, int capacity) {
+		this(capacity);
+		int n = old.capacity;
+		System.arraycopy(old.nodes, 0, nodes, 0, n);
+		System.arraycopy(old.ids, 0, ids, 0, n);
+		System.arraycopy(old.weight, 0, weight, 0, n);
+		System.arraycopy(old.location, 0, location, 0, n);
+		System.arraycopy(old.lastCycle, 0, lastCycle, 0, n);
+		System.arraycopy(old.firedTick, 0, firedTick, 0, n);
+		for (int i = 0; i < n; i++) {
+			crossings.set(i, old.crossings.get(i));
+		}
+		for (int i = 0; i < old.classified.length(); i++) {
+			classified.set(i, old.classified.get(i));
+			above.set(i, old.above.get(i));
+			prefetched.set(i, old.prefetched.get(i));
+		}
+	}
+
+	NodeColumns grow(int newCapacity) {
+		return new NodeColumns(this, newCapacity);
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public Node getNode(int idx) {
+		return nodes[idx];
+	}
+
+	public int getNodeId(int idx) {
+		return ids[idx];
+	}
+
+	public long getLastActCycle(int idx) {
+		return lastCycle[idx];
+	}
+}
@@ -0,0 +1,279 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2011 The University of Memphis.  All rights reserved. 
+ * This program and the accompanying materials are made available 
+ * under the terms of the LIDA Software Framework Non-Commercial License v1.0 
+ * which accompanies this distribution, and is available at
+ * http://ccrg.cs.memphis.edu/assets/papers/2010/LIDA-framework-non-commercial-v1.0.pdf
+ *******************************************************************************/
+package edu.memphis.ccrg.lida.pam;
+
+import edu.memphis.ccrg.lida.framework.shared.*;
+import edu.memphis.ccrg.lida.framework.tasks.TaskManager;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Memory-mapped checkpoint of PAM. Layout, big endian:
+ * header: magic, version, node count, link count, string table offset (long);
+ * node table: id, activation, incentive salience, truth, weight, name offset, name length;
+ * link table: source id, sink id, category name offset, category name length;
+ * string table: UTF-8 names.
+ * 内存映射检查点，定长记录，直接按偏移读取，无逐对象反序列化
+ */
+class PamCheckpoint {
+	private static final Logger logger = Logger
+			.getLogger(PamCheckpoint.class.getCanonicalName());
+	private static ElementFactory factory = ElementFactory.getInstance();
+
+	private static final int MAGIC = 0x50414D43;	// "PAMC"
+	private static final int VERSION = 2;
+	private static final int HEADER_BYTES = 4 + 4 + 4 + 4 + 8;
+	// id, activation, incentive, truth, weight, name, labels
+	private static final int NODE_BYTES = 4 + 8 + 8 + 4 + 8 + (8 + 4) + (8 + 4);
+	// source, sink, category id, category name, incentive
+	private static final int LINK_BYTES = 4 + 4 + 4 + (8 + 4) + 8;
+
+	/*
+	 * Writes to a temporary file next to path and moves it over path, so a crash
+	 * while writing leaves the previous checkpoint intact. Writers are serialized.
+	 */
+	static synchronized void write(PAMemoryImpl pam, Path path) throws IOException {
+		List<Node> nodes = new ArrayList<Node>(pam.pamNodeStructure.getNodes());
+		List<Link> links = new ArrayList<Link>();
+		for (Link l : pam.pamNodeStructure.getLinks()) {
+			if (l.isSimpleLink() && l.getSink() instanceof Node) {
+				links.add(l);
+			}
+		}
+		// 名字表，同名只存一次
+		Map<String, long[]> names = new LinkedHashMap<String, long[]>();
+		long[] stringBytes = {0L};
+		for (Node n : nodes) {
+			intern(names, n.getName(), stringBytes);
+			intern(names, joinLabels(n), stringBytes);
+		}
+		for (Link l : links) {
+			intern(names, l.getCategory().getName(), stringBytes);
+		}
+		long nodeTable = (long) nodes.size() * NODE_BYTES;
+		long linkTable = (long) links.size() * LINK_BYTES;
+		long stringOffset = HEADER_BYTES + nodeTable + linkTable;
+		Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			// 分段映射，单段不超过2G
+			MappedByteBuffer buf = map(channel, FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+			buf.putInt(MAGIC).putInt(VERSION).putInt(nodes.size()).putInt(links.size()).putLong(stringOffset);
+			buf.force();
+			buf = map(channel, FileChannel.MapMode.READ_WRITE, HEADER_BYTES, nodeTable);
+			for (Node n : nodes) {
+				long[] name = names.get(key(n.getName()));
+				long[] labels = names.get(joinLabels(n));
+				buf.putInt(n.getNodeId())
+						.putDouble(n.getActivation())
+						.putDouble(n.getIncentiveSalience())
+						.putInt(n.getTruth())
+						.putDouble(pam.pamNodeStructure.getWeight(n.getNodeId()))
+						.putLong(name[0]).putInt((int) name[1])
+						.putLong(labels[0]).putInt((int) labels[1]);
+			}
+			buf.force();
+			buf = map(channel, FileChannel.MapMode.READ_WRITE, HEADER_BYTES + nodeTable, linkTable);
+			for (Link l : links) {
+				LinkCategory cat = l.getCategory();
+				long[] name = names.get(key(cat.getName()));
+				Object incentive = l.getProperty("incentive");
+				buf.putInt(l.getSource().getNodeId())
+						.putInt(((Node) l.getSink()).getNodeId())
+						.putInt(cat.getNodeId())
+						.putLong(name[0]).putInt((int) name[1])
+						.putDouble(incentive instanceof Number ? ((Number) incentive).doubleValue() : Double.NaN);
+			}
+			buf.force();
+			buf = map(channel, FileChannel.MapMode.READ_WRITE, stringOffset, stringBytes[0]);
+			for (String name : names.keySet()) {
+				buf.put(name.getBytes(StandardCharsets.UTF_8));
+			}
+			buf.force();
+		}
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/*
+	 * Rebuilds nodes and links from the mapped tables alone, without the graph db.
+	 * A node whose id is already in PAM under another name is skipped, with the links
+	 * touching it: the checkpoint is then older than the graph PAM was loaded from.
+	 */
+	static int restore(PAMemoryImpl pam, Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size < HEADER_BYTES) {
+				throw new IOException("not a PAM checkpoint: " + path);
+			}
+			MappedByteBuffer buf = map(channel, FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+			if (buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION) {
+				throw new IOException("not a PAM checkpoint, or of another version: " + path);
+			}
+			int nodeCount = buf.getInt(8);
+			int linkCount = buf.getInt(12);
+			long stringOffset = buf.getLong(16);
+			long nodeTable = (long) nodeCount * NODE_BYTES;
+			long linkTable = (long) linkCount * LINK_BYTES;
+			if (nodeCount < 0 || linkCount < 0 || stringOffset != HEADER_BYTES + nodeTable + linkTable
+					|| stringOffset > size) {
+				throw new IOException("corrupt PAM checkpoint: " + path);
+			}
+			MappedByteBuffer nodeBuf = map(channel, FileChannel.MapMode.READ_ONLY, HEADER_BYTES, nodeTable);
+			MappedByteBuffer linkBuf = map(channel, FileChannel.MapMode.READ_ONLY, HEADER_BYTES + nodeTable, linkTable);
+			MappedByteBuffer strings = map(channel, FileChannel.MapMode.READ_ONLY, stringOffset, size - stringOffset);
+			Map<Integer, Node> restored = new HashMap<Integer, Node>();
+			int conflicts = 0;
+			for (int i = 0; i < nodeCount; i++) {
+				int at = i * NODE_BYTES;
+				int id = nodeBuf.getInt(at);
+				String name = readString(strings, nodeBuf.getLong(at + 32), nodeBuf.getInt(at + 40));
+				// 同id不同名，图谱id已被复用，不恢复
+				Node present = pam.pamNodeStructure.getNode(id);
+				if (present != null && !Objects.equals(present.getName(), name)) {
+					conflicts++;
+					continue;
+				}
+				String labels = readString(strings, nodeBuf.getLong(at + 44), nodeBuf.getInt(at + 52));
+				double weight = nodeBuf.getDouble(at + 24);
+				PamNode node = pam.addDefaultNode(new CheckpointNode(id, name, labels, weight));
+				node.setActivation(nodeBuf.getDouble(at + 4));
+				node.setIncentiveSalience(nodeBuf.getDouble(at + 12));
+				node.setTruth(nodeBuf.getInt(at + 20));
+				if (!Double.isNaN(weight)) {
+					pam.pamNodeStructure.setWeight(node.getNodeId(), weight);
+				}
+				restored.put(id, node);
+			}
+			// 边类型不是PAM节点，同id共用一个
+			Map<Integer, LinkCategory> categories = new HashMap<Integer, LinkCategory>();
+			for (int i = 0; i < linkCount; i++) {
+				int at = i * LINK_BYTES;
+				Node src = restored.get(linkBuf.getInt(at));
+				Node snk = restored.get(linkBuf.getInt(at + 4));
+				if (src == null || snk == null) {
+					continue;
+				}
+				int catId = linkBuf.getInt(at + 8);
+				LinkCategory cat = categories.get(catId);
+				if (cat == null) {
+					String catName = readString(strings, linkBuf.getLong(at + 12), linkBuf.getInt(at + 20));
+					cat = (LinkCategory) factory.getNode(new CheckpointNode(catId, catName, "", Double.NaN), "PamNodeImpl");
+					categories.put(catId, cat);
+				}
+				double incentive = linkBuf.getDouble(at + 24);
+				pam.addDefaultLink(factory.getLink("PamLinkImpl", src, snk, cat, new CheckpointLink(incentive)));
+			}
+			if (conflicts > 0) {
+				logger.log(Level.WARNING, "{1} checkpoint nodes skipped, their ids are in PAM under other names",
+						new Object[]{TaskManager.getCurrentTick(), conflicts});
+			}
+			return restored.size();
+		}
+	}
+
+	private static MappedByteBuffer map(FileChannel channel, FileChannel.MapMode mode, long position, long size)
+			throws IOException {
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("PAM checkpoint section over 2 GB: " + size + " bytes");
+		}
+		return channel.map(mode, position, size);
+	}
+
+	private static String key(String name) {
+		return name == null ? "" : name;
+	}
+
+	private static String joinLabels(Node n) {
+		Collection<String> labels = n.getLabels();
+		return labels == null ? "" : String.join(",", labels);
+	}
+
+	private static void intern(Map<String, long[]> names, String name, long[] stringBytes) {
+		String key = key(name);
+		if (!names.containsKey(key)) {
+			int len = key.getBytes(StandardCharsets.UTF_8).length;
+			names.put(key, new long[]{stringBytes[0], len});
+			stringBytes[0] += len;
+		}
+	}
+
+	private static String readString(ByteBuffer strings, long offset, int len) throws IOException {
+		if (offset < 0 || len < 0 || offset + len > strings.capacity()) {
+			throw new IOException("corrupt PAM checkpoint string at " + offset);
+		}
+		byte[] bytes = new byte[len];
+		for (int i = 0; i < len; i++) {
+			bytes[i] = strings.get((int) offset + i);
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/*
+	 * Prototype of a node restored from a checkpoint, copied into PAM by the element factory.
+	 */
+	private static class CheckpointNode extends NodeImpl {
+		private final int id;
+		private final String name;
+		private final List<String> labels;
+		private final double weight;
+
+		CheckpointNode(int id, String name, String labels, double weight) {
+			this.id = id;
+			this.name = name;
+			this.labels = labels.isEmpty() ? Collections.<String>emptyList() : Arrays.asList(labels.split(","));
+			this.weight = weight;
+		}
+
+		@Override
+		public int getNodeId() {
+			return id;
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public Collection<String> getLabels() {
+			return labels;
+		}
+
+		@Override
+		public Object getProperty(String key) {
+			return "weight".equals(key) && !Double.isNaN(weight) ? weight : null;
+		}
+	}
+
+	/*
+	 * Prototype of a link restored from a checkpoint, only carrying its "incentive".
+	 */
+	private static class CheckpointLink extends LinkImpl {
+		private final double incentive;
+
+		CheckpointLink(double incentive) {
+			this.incentive = incentive;
+		}
+
+		@Override
+		public Object getProperty(String key) {
+			return "incentive".equals(key) && !Double.isNaN(incentive) ? incentive : null;
+		}
+	}
+}
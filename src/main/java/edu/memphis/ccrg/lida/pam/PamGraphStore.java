@@ -0,0 +1,71 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2011 The University of Memphis.  All rights reserved. 
+ * This program and the accompanying materials are made available 
+ * under the terms of the LIDA Software Framework Non-Commercial License v1.0 
+ * which accompanies this distribution, and is available at
+ * http://ccrg.cs.memphis.edu/assets/papers/2010/LIDA-framework-non-commercial-v1.0.pdf
+ *******************************************************************************/
+package edu.memphis.ccrg.lida.pam;
+
+import edu.memphis.ccrg.lida.framework.shared.*;
+
+import java.util.*;
+
+/**
+ * The lookups PAM makes on the long-term concept graph. Nodes and links returned are
+ * fresh copies the caller may modify and add to node structures.
+ * 知觉联想记忆用到的长期图查询
+ */
+public interface PamGraphStore {
+
+	/**
+	 * A link with the type of the relationship it was read from.
+	 */
+	class TypedLink {
+		private final String type;
+		private final Link link;
+
+		public TypedLink(String type, Link link) {
+			this.type = type;
+			this.link = link;
+		}
+
+		public String getType() {
+			return type;
+		}
+
+		public Link getLink() {
+			return link;
+		}
+	}
+
+	/**
+	 * @return the node with specified name, null if none
+	 */
+	Node getNodeByName(String name);
+
+	/**
+	 * @return all links into the node with specified name, with their types
+	 */
+	List<TypedLink> getIncomingLinks(String name);
+
+	/**
+	 * (n:场景)&lt;-[:时序]-(m:场景)-[:时序]-&gt;(i:场景)
+	 * @return the scenes m sequencing both the scene named first and the scene named second
+	 */
+	List<Node> getSequenceParents(String first, String second);
+
+	/**
+	 * (m:场景)-[:时序首]-&gt;(i:场景)
+	 * @return the 时序首 links out of the scene with specified name
+	 */
+	List<Link> getSequenceHeads(String name);
+
+	/**
+	 * (n)&lt;-[:isa]-(m)-[:动作]-&gt;(i:场景)&lt;-[]-(o)
+	 * @param isaName name of n
+	 * @param sourceName name of o
+	 * @return the scenes i
+	 */
+	List<Node> getActionScenes(String isaName, String sourceName);
+}
@@ -0,0 +1,277 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2011 The University of Memphis.  All rights reserved. 
+ * This program and the accompanying materials are made available 
+ * under the terms of the LIDA Software Framework Non-Commercial License v1.0 
+ * which accompanies this distribution, and is available at
+ * http://ccrg.cs.memphis.edu/assets/papers/2010/LIDA-framework-non-commercial-v1.0.pdf
+ *******************************************************************************/
+package edu.memphis.ccrg.lida.pam;
+
+import edu.memphis.ccrg.lida.framework.ModuleName;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and histograms of the PAM hot paths: excitations, spawned PropagationTasks,
+ * propagation depth relative to the depth cap, refractory skips, fan-out per propagation,
+ * graph db query latency, lookups of the in-memory store that fell back to the graph db,
+ * broadcasts superseded in the mailbox and the percepts routed to each buffer.
+ * 知觉联想记忆运行指标，可由快照或JMX读取
+ */
+public class PamMetrics implements PamMetricsMXBean {
+
+	/** depths beyond the last bucket are counted in it */
+	private static final int DEPTH_BUCKETS = 10;
+
+	final LongAdder excitations = new LongAdder();
+	final LongAdder propagationTasks = new LongAdder();
+	final LongAdder refractorySkips = new LongAdder();
+	final LongAdder mergedVisits = new LongAdder();
+	final LongAdder coalescedBroadcasts = new LongAdder();
+	final LongAdder[] depths = new LongAdder[DEPTH_BUCKETS];
+	final Histogram fanout = new Histogram();
+	final Histogram queryLatency = new Histogram();
+	final LongAdder storeFallbacks = new LongAdder();
+	final Map<String, LongAdder> percepts = new ConcurrentHashMap<String, LongAdder>();
+
+	public PamMetrics() {
+		for (int i = 0; i < DEPTH_BUCKETS; i++) {
+			depths[i] = new LongAdder();
+		}
+	}
+
+	void recordDepth(int deep) {
+		depths[Math.max(0, Math.min(deep, DEPTH_BUCKETS - 1))].increment();
+	}
+
+	void countPercept(ModuleName buffer) {
+		String key = String.valueOf(buffer);
+		LongAdder count = percepts.get(key);
+		if (count == null) {
+			count = percepts.computeIfAbsent(key, k -> new LongAdder());
+		}
+		count.increment();
+	}
+
+	@Override
+	public long getExcitationCount() {
+		return excitations.sum();
+	}
+
+	@Override
+	public long getPropagationTaskCount() {
+		return propagationTasks.sum();
+	}
+
+	@Override
+	public long getRefractorySkipCount() {
+		return refractorySkips.sum();
+	}
+
+	@Override
+	public long getMergedVisitCount() {
+		return mergedVisits.sum();
+	}
+
+	@Override
+	public long getCoalescedBroadcastCount() {
+		return coalescedBroadcasts.sum();
+	}
+
+	@Override
+	public double getPropagationTasksPerExcitation() {
+		long e = excitations.sum();
+		return e == 0 ? 0.0 : (double) propagationTasks.sum() / e;
+	}
+
+	@Override
+	public long[] getDepthHistogram() {
+		long[] res = new long[DEPTH_BUCKETS];
+		for (int i = 0; i < DEPTH_BUCKETS; i++) {
+			res[i] = depths[i].sum();
+		}
+		return res;
+	}
+
+	@Override
+	public long getFanOutP50() {
+		return fanout.getPercentile(50.0);
+	}
+
+	@Override
+	public long getFanOutP99() {
+		return fanout.getPercentile(99.0);
+	}
+
+	@Override
+	public long getQueryCount() {
+		return queryLatency.getCount();
+	}
+
+	@Override
+	public long getStoreFallbackCount() {
+		return storeFallbacks.sum();
+	}
+
+	@Override
+	public long getQueryLatencyP50Micros() {
+		return queryLatency.getPercentile(50.0) / 1000;
+	}
+
+	@Override
+	public long getQueryLatencyP99Micros() {
+		return queryLatency.getPercentile(99.0) / 1000;
+	}
+
+	@Override
+	public long getQueryLatencyMaxMicros() {
+		return queryLatency.getMax() / 1000;
+	}
+
+	@Override
+	public Map<String, Long> getPerceptCounts() {
+		Map<String, Long> res = new TreeMap<String, Long>();
+		for (Map.Entry<String, LongAdder> e : percepts.entrySet()) {
+			res.put(e.getKey(), e.getValue().sum());
+		}
+		return res;
+	}
+
+	/**
+	 * @return histogram of the number of PropagationTasks spawned per propagation
+	 */
+	public Histogram getFanOut() {
+		return fanout;
+	}
+
+	/**
+	 * @return histogram of the graph db query latency in nanoseconds
+	 */
+	public Histogram getQueryLatency() {
+		return queryLatency;
+	}
+
+	/**
+	 * @return all metrics keyed by name
+	 */
+	public Map<String, Object> snapshot() {
+		Map<String, Object> res = new LinkedHashMap<String, Object>();
+		res.put("excitations", getExcitationCount());
+		res.put("propagationTasks", getPropagationTaskCount());
+		res.put("propagationTasksPerExcitation", getPropagationTasksPerExcitation());
+		res.put("refractorySkips", getRefractorySkipCount());
+		res.put("mergedVisits", getMergedVisitCount());
+		res.put("coalescedBroadcasts", getCoalescedBroadcastCount());
+		res.put("depthHistogram", getDepthHistogram());
+		res.put("fanOutP50", getFanOutP50());
+		res.put("fanOutP99", getFanOutP99());
+		res.put("queries", getQueryCount());
+		res.put("queryLatencyP50Micros", getQueryLatencyP50Micros());
+		res.put("queryLatencyP99Micros", getQueryLatencyP99Micros());
+		res.put("queryLatencyMaxMicros", getQueryLatencyMaxMicros());
+		res.put("storeFallbacks", getStoreFallbackCount());
+		res.put("perceptCounts", getPerceptCounts());
+		return res;
+	}
+
+	@Override
+	public void reset() {
+		excitations.reset();
+		propagationTasks.reset();
+		refractorySkips.reset();
+		mergedVisits.reset();
+		coalescedBroadcasts.reset();
+		for (LongAdder d : depths) {
+			d.reset();
+		}
+		fanout.reset();
+		queryLatency.reset();
+		storeFallbacks.reset();
+		percepts.clear();
+	}
+
+	/**
+	 * Lock-free histogram of non-negative longs in log-linear buckets: values below
+	 * {@link #SUB_BUCKETS} are exact, every larger power of two is split into
+	 * {@link #HALF} linear buckets, so recorded values keep about 6% relative precision,
+	 * in the style of HdrHistogram.
+	 */
+	public static class Histogram {
+		private static final int SUB_BITS = 5;
+		private static final int SUB_BUCKETS = 1 << SUB_BITS;
+		private static final int HALF = SUB_BUCKETS / 2;
+
+		private final AtomicLongArray counts = new AtomicLongArray(SUB_BUCKETS + (64 - SUB_BITS) * HALF);
+		private final LongAdder total = new LongAdder();
+		private final AtomicLong max = new AtomicLong();
+
+		public void record(long value) {
+			long v = Math.max(0, value);
+			counts.incrementAndGet(indexOf(v));
+			total.increment();
+			long m = max.get();
+			while (v > m && !max.compareAndSet(m, v)) {
+				m = max.get();
+			}
+		}
+
+		private static int indexOf(long v) {
+			if (v < SUB_BUCKETS) {
+				return (int) v;
+			}
+			int shift = 64 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+			return SUB_BUCKETS + (shift - 1) * HALF + (int) (v >>> shift) - HALF;
+		}
+
+		private static long valueOf(int index) {
+			if (index < SUB_BUCKETS) {
+				return index;
+			}
+			int k = index - SUB_BUCKETS;
+			int shift = k / HALF + 1;
+			long mantissa = k % HALF + HALF;
+			// 桶上界
+			return ((mantissa + 1) << shift) - 1;
+		}
+
+		public long getCount() {
+			return total.sum();
+		}
+
+		public long getMax() {
+			return max.get();
+		}
+
+		/**
+		 * @param percentile in [0, 100]
+		 * @return the upper bound of the bucket holding specified percentile, 0 if empty
+		 */
+		public long getPercentile(double percentile) {
+			long n = total.sum();
+			if (n == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(n * percentile / 100.0));
+			long seen = 0;
+			for (int i = 0; i < counts.length(); i++) {
+				seen += counts.get(i);
+				if (seen >= rank) {
+					return Math.min(valueOf(i), max.get());
+				}
+			}
+			return max.get();
+		}
+
+		public void reset() {
+			for (int i = 0; i < counts.length(); i++) {
+				counts.set(i, 0);
+			}
+			total.reset();
+			max.set(0);
+		}
+	}
+}
@@ -0,0 +1,32 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2011 The University of Memphis.  All rights reserved. 
+ * This program and the accompanying materials are made available 
+ * under the terms of the LIDA Software Framework Non-Commercial License v1.0 
+ * which accompanies this distribution, and is available at
+ * http://ccrg.cs.memphis.edu/assets/papers/2010/LIDA-framework-non-commercial-v1.0.pdf
+ *******************************************************************************/
+package edu.memphis.ccrg.lida.pam;
+
+import java.util.*;
+
+/**
+ * Management interface of {@link PamMetrics}.
+ */
+public interface PamMetricsMXBean {
+	long getExcitationCount();
+	long getPropagationTaskCount();
+	long getRefractorySkipCount();
+	long getMergedVisitCount();
+	long getCoalescedBroadcastCount();
+	double getPropagationTasksPerExcitation();
+	long[] getDepthHistogram();
+	long getFanOutP50();
+	long getFanOutP99();
+	long getQueryCount();
+	long getStoreFallbackCount();
+	long getQueryLatencyP50Micros();
+	long getQueryLatencyP99Micros();
+	long getQueryLatencyMaxMicros();
+	Map<String, Long> getPerceptCounts();
+	void reset();
+}
@@ -0,0 +1,754 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2011 The University of Memphis.  All rights reserved. 
+ * This program and the accompanying materials are made available 
+ * under the terms of the LIDA Software Framework Non-Commercial License v1.0 
+ * which accompanies this distribution, and is available at
+ * http://ccrg.cs.memphis.edu/assets/papers/2010/LIDA-framework-non-commercial-v1.0.pdf
+ *******************************************************************************/
+package edu.memphis.ccrg.lida.pam;
+
+import edu.memphis.ccrg.lida.framework.shared.*;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Internal implementation of {@link NodeStructureImpl}. Allows {@link Node}
+ * to be added without copying them. 添加而不复制它们
+ *
+ * Every added node also gets a dense index into {@link NodeColumns}, parallel primitive
+ * arrays holding the per-node state that PAM itself owns: cached weight, location, last
+ * activation cycle, firing tick, consolidation crossings and marks. Activation and
+ * incentive salience stay in the nodes, the columns never hold a copy of them.
+ * 每个节点分配稠密下标，PAM自有的节点状态按列存放，激活仍在节点中
+ *
+ * Outgoing links are also kept in a {@link LinkCsr} snapshot in BFS order; links added
+ * since the snapshot wait in a per-source overflow until the next rebuild. Adding a link
+ * takes no lock. One thread at a time rebuilds the snapshot, without blocking adders or
+ * readers, and swaps it in. Removed links are filtered out of the reads until enough of
+ * them pile up to rebuild.
+ * 出边压缩稀疏行快照，新增边先进溢出表，加边无锁，重建在锁外完成后替换
+ */
+public class PamNodeStructure extends NodeStructureImpl {
+
+	/**
+	 * Index of the nodes which are not in the columns.
+	 */
+	public static final int NO_INDEX = -1;
+	// 无地点
+	static final int NO_LOCATION = Integer.MIN_VALUE;
+
+	private static final int INITIAL_COLUMN_CAPACITY = 64;
+
+	static final long NEVER_FIRED = Long.MIN_VALUE;
+
+	// 节点id到稠密下标
+	private volatile int[] indexById = new int[0];
+	private volatile NodeColumns columns = new NodeColumns(INITIAL_COLUMN_CAPACITY);
+	private volatile int indexedCount;
+	private volatile VisitMarks visitMarks = new VisitMarks(-1L, 0);
+	private double crossingThreshold = Double.POSITIVE_INFINITY;
+
+	// 溢出边或已删边超过快照的1/8就重建
+	private static final int MIN_PENDING_LINKS = 64;
+	private final AtomicBoolean rebuilding = new AtomicBoolean();
+	private volatile LinkCsr csr = LinkCsr.EMPTY;
+	// 溢出边及其加入序号，序号不大于快照序号的已在快照中
+	private final Map<Integer, Map<Link, Long>> pendingLinks = new ConcurrentHashMap<Integer, Map<Link, Long>>();
+	private final AtomicLong pendingCount = new AtomicLong();
+	private final AtomicLong pendingSeq = new AtomicLong();
+	private final Map<String, Integer> categoryOrdinals = new ConcurrentHashMap<String, Integer>();
+
+	/**
+	 * @param nodeType
+	 *            Default node type
+	 * @param linkType
+	 *            Default link type
+	 */
+	public PamNodeStructure(String nodeType, String linkType) {
+		super(nodeType, linkType);
+	}
+
+	@Override
+	public Node addNode(Node n, boolean copy) {
+		Node res = super.addNode(n, copy);
+		index(res);
+		return res;
+	}
+
+	@Override
+	public Node addNode(Node n, String type) {
+		Node res = super.addNode(n, type);
+		index(res);
+		return res;
+	}
+
+	@Override
+	public Node addNode(String type, String label, double activation, double removal) {
+		Node res = super.addNode(type, label, activation, removal);
+		index(res);
+		return res;
+	}
+
+	@Override
+	public Link addLink(Link l, String type) {
+		if (l == null || containsLink(l)) {
+			return super.addLink(l, type);
+		}
+		Link res = super.addLink(l, type);
+		addPending(res);
+		return res;
+	}
+
+	@Override
+	public Link addLink(String type, Node source, Linkable sink, LinkCategory category,
+						double activation, double removal) {
+		int before = getLinkCount();
+		Link res = super.addLink(type, source, sink, category, activation, removal);
+		if (getLinkCount() > before) {
+			addPending(res);
+		}
+		return res;
+	}
+
+	/*
+	 * Two threads adding the same link both get here; the per-source map keeps it once.
+	 */
+	private void addPending(Link l) {
+		if (l != null && pendingLinks.computeIfAbsent(l.getSource().getNodeId(),
+				k -> new ConcurrentHashMap<Link, Long>()).putIfAbsent(l, pendingSeq.incrementAndGet()) == null) {
+			pendingCount.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Returns the outgoing links of specified node: a view of its row of the CSR
+	 * snapshot, plus the links added since, if any, without the links removed since.
+	 * @param n a node
+	 * @return its outgoing links, not to be modified
+	 */
+	public Collection<Link> getOutgoingLinks(Node n) {
+		LinkCsr c = getCsr();
+		int row = c.getRow(indexOf(n.getNodeId()));
+		List<Link> base = row < 0 ? Collections.<Link>emptyList()
+				: Arrays.asList(c.links).subList(c.offsets[row], c.offsets[row + 1]);
+		Map<Link, Long> extra = pendingLinks.get(n.getNodeId());
+		boolean removed = hasRemovedLinks(c);
+		if ((extra == null || extra.isEmpty()) && !removed) {
+			return base;
+		}
+		List<Link> res = new ArrayList<Link>(base.size() + (extra == null ? 0 : extra.size()));
+		for (Link l : base) {
+			if (!removed || containsLink(l)) {
+				res.add(l);
+			}
+		}
+		if (extra != null) {
+			addPendingSince(c, extra, removed, res);
+		}
+		return res;
+	}
+
+	/**
+	 * @param n a node
+	 * @return the outgoing links of the node added since the current CSR snapshot was built
+	 */
+	public Collection<Link> getPendingLinks(Node n) {
+		Map<Link, Long> extra = pendingLinks.get(n.getNodeId());
+		if (extra == null || extra.isEmpty()) {
+			return Collections.<Link>emptyList();
+		}
+		LinkCsr c = csr;
+		List<Link> res = new ArrayList<Link>(extra.size());
+		addPendingSince(c, extra, hasRemovedLinks(c), res);
+		return res;
+	}
+
+	private void addPendingSince(LinkCsr c, Map<Link, Long> extra, boolean removed, List<Link> res) {
+		for (Map.Entry<Link, Long> e : extra.entrySet()) {
+			// 快照已含的还未移出溢出表
+			if (e.getValue() > c.seq && (!removed || containsLink(e.getKey()))) {
+				res.add(e.getKey());
+			}
+		}
+	}
+
+	/**
+	 * Whether links were removed since specified snapshot was built; its links, and the
+	 * pending ones, must then be checked with containsLink before use.
+	 * @param c a snapshot from {@link #getCsr()}
+	 * @return true if links may have been removed
+	 */
+	public boolean hasRemovedLinks(LinkCsr c) {
+		return removedSince(c) > 0;
+	}
+
+	private long removedSince(LinkCsr c) {
+		return c.linkCount + pendingCount.get() - getLinkCount();
+	}
+
+	/**
+	 * Returns the CSR snapshot of the outgoing links, rebuilt first if too many links
+	 * were added or removed since it was built. If another thread is rebuilding, returns
+	 * the current snapshot; the overflow and removal filter keep reads complete.
+	 * @return the current snapshot
+	 */
+	public LinkCsr getCsr() {
+		LinkCsr c = csr;
+		if (isStale(c)) {
+			c = rebuildCsr();
+		}
+		return c;
+	}
+
+	private boolean isStale(LinkCsr c) {
+		long limit = Math.max(MIN_PENDING_LINKS, c.linkCount >> 3);
+		return pendingCount.get() > limit || removedSince(c) > limit;
+	}
+
+	/**
+	 * @param category a link category name
+	 * @return its ordinal in {@link LinkCsr#getCategory(int)}, -1 if no snapshot link has it
+	 */
+	public int getCategoryOrdinal(String category) {
+		Integer ord = categoryOrdinals.get(category);
+		return ord == null ? -1 : ord;
+	}
+
+	private LinkCsr rebuildCsr() {
+		if (!rebuilding.compareAndSet(false, true)) {
+			// 他线程在重建，先用旧快照
+			return csr;
+		}
+		try {
+			LinkCsr c = csr;
+			if (!isStale(c)) {
+				return c;
+			}
+			// 序号不大于seq的溢出边已在结构中，必在下面的拷贝里
+			long seq = pendingSeq.get();
+			List<Link> all = new ArrayList<Link>(getLinks());
+			int[] srcIdx = new int[all.size()];
+			for (int i = 0; i < srcIdx.length; i++) {
+				srcIdx[i] = index(all.get(i).getSource());
+			}
+			int n = indexedCount;
+			// 先按稠密下标分组
+			int[] start = new int[n + 1];
+			for (int s : srcIdx) {
+				if (s != NO_INDEX) {
+					start[s + 1]++;
+				}
+			}
+			for (int i = 0; i < n; i++) {
+				start[i + 1] += start[i];
+			}
+			int[] byIdx = new int[start[n]];
+			int[] fill = Arrays.copyOf(start, n);
+			for (int i = 0; i < srcIdx.length; i++) {
+				if (srcIdx[i] != NO_INDEX) {
+					byIdx[fill[srcIdx[i]]++] = i;
+				}
+			}
+			int[] sinkIdx = new int[all.size()];
+			for (int i = 0; i < sinkIdx.length; i++) {
+				Linkable snk = all.get(i).getSink();
+				sinkIdx[i] = snk instanceof Node ? indexOf(((Node) snk).getNodeId()) : NO_INDEX;
+			}
+			// BFS编号，相连的节点行相邻
+			int[] rowOfIndex = new int[n];
+			Arrays.fill(rowOfIndex, -1);
+			int[] indexOfRow = new int[n];
+			int rows = 0;
+			for (int root = 0; root < n; root++) {
+				if (rowOfIndex[root] != -1) {
+					continue;
+				}
+				rowOfIndex[root] = rows;
+				indexOfRow[rows++] = root;
+				for (int head = rows - 1; head < rows; head++) {
+					int idx = indexOfRow[head];
+					for (int j = start[idx]; j < start[idx + 1]; j++) {
+						int t = sinkIdx[byIdx[j]];
+						if (t != NO_INDEX && t < n && rowOfIndex[t] == -1) {
+							rowOfIndex[t] = rows;
+							indexOfRow[rows++] = t;
+						}
+					}
+				}
+			}
+			int[] offsets = new int[rows + 1];
+			int m = byIdx.length;
+			int[] targets = new int[m];
+			int[] categories = new int[m];
+			Link[] links = new Link[m];
+			int k = 0;
+			for (int r = 0; r < rows; r++) {
+				offsets[r] = k;
+				int idx = indexOfRow[r];
+				for (int j = start[idx]; j < start[idx + 1]; j++) {
+					Link l = all.get(byIdx[j]);
+					int t = sinkIdx[byIdx[j]];
+					links[k] = l;
+					targets[k] = t != NO_INDEX && t < n ? rowOfIndex[t] : -1;
+					categories[k] = ordinal(l.getCategory() == null ? null : l.getCategory().getName());
+					k++;
+				}
+			}
+			offsets[rows] = k;
+			String[] names = new String[categoryOrdinals.size()];
+			for (Map.Entry<String, Integer> e : categoryOrdinals.entrySet()) {
+				names[e.getValue()] = e.getKey();
+			}
+			c = new LinkCsr(all.size(), rowOfIndex, indexOfRow, offsets, targets, categories, links, names, seq);
+			csr = c;
+			prunePending(c);
+			return c;
+		} finally {
+			rebuilding.set(false);
+		}
+	}
+
+	/*
+	 * Drops from the overflow the links the new snapshot holds: those added before it
+	 * was taken, and the few added while it was taken that made it in anyway.
+	 */
+	private void prunePending(LinkCsr c) {
+		for (Map.Entry<Integer, Map<Link, Long>> source : pendingLinks.entrySet()) {
+			int row = c.getRow(indexOf(source.getKey()));
+			Iterator<Map.Entry<Link, Long>> it = source.getValue().entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<Link, Long> e = it.next();
+				if (e.getValue() <= c.seq || rowContains(c, row, e.getKey())) {
+					it.remove();
+					pendingCount.decrementAndGet();
+				}
+			}
+		}
+	}
+
+	private static boolean rowContains(LinkCsr c, int row, Link l) {
+		if (row < 0) {
+			return false;
+		}
+		for (int i = c.offsets[row]; i < c.offsets[row + 1]; i++) {
+			if (c.links[i].equals(l)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private int ordinal(String category) {
+		String key = String.valueOf(category);
+		Integer ord = categoryOrdinals.get(key);
+		if (ord == null) {
+			ord = categoryOrdinals.size();
+			categoryOrdinals.put(key, ord);
+		}
+		return ord;
+	}
+
+	/**
+	 * @param threshold the activation plus incentive salience whose upward crossings are
+	 * counted by {@link #observeActivation(Node)}, infinite to count none
+	 */
+	public void setCrossingThreshold(double threshold) {
+		crossingThreshold = threshold;
+	}
+
+	/**
+	 * Records the current activation plus incentive salience of specified node against
+	 * the crossing threshold: counts a crossing if it is over and was not over when last
+	 * observed. Called where activation is raised and where consolidation scans, so no
+	 * pass over all nodes is needed.
+	 * 越阈值只在被观察时记，不做全量扫描
+	 * @param n a node of this structure
+	 * @return whether the node is over the threshold
+	 */
+	public boolean observeActivation(Node n) {
+		double threshold = crossingThreshold;
+		if (threshold == Double.POSITIVE_INFINITY) {
+			return false;
+		}
+		int idx = indexOf(n.getNodeId());
+		if (idx == NO_INDEX) {
+			return false;
+		}
+		boolean over = n.getTotalActivation() + n.getTotalIncentiveSalience() > threshold;
+		// 从下往上越过阈值才计一次
+		if (setBit(columns.above, idx, over) != over && over) {
+			addCrossings(idx, 1);
+		}
+		return over;
+	}
+
+	/**
+	 * @param idx a dense node index
+	 * @return whether the node was over the crossing threshold when last observed
+	 */
+	public boolean isAbove(int idx) {
+		return getBit(columns.above, idx);
+	}
+
+	private static boolean getBit(AtomicLongArray bits, int idx) {
+		return (bits.get(idx >>> 6) & (1L << (idx & 63))) != 0;
+	}
+
+	/*
+	 * Sets or clears one bit with CAS, returning its previous value.
+	 */
+	private static boolean setBit(AtomicLongArray bits, int idx, boolean on) {
+		int w = idx >>> 6;
+		long bit = 1L << (idx & 63);
+		long old;
+		do {
+			old = bits.get(w);
+			if (((old & bit) != 0) == on) {
+				return on;
+			}
+		} while (!bits.compareAndSet(w, old, on ? old | bit : old & ~bit));
+		return !on;
+	}
+
+	/**
+	 * Returns and resets the number of threshold crossings of the node at specified index.
+	 * Crossings are changed under the lock that guards the growth of the columns, so none
+	 * are lost to a grow.
+	 * @param idx a dense index
+	 * @return the crossings since the last call
+	 */
+	public int takeCrossings(int idx) {
+		if (columns.crossings.get(idx) == 0) {
+			return 0;
+		}
+		synchronized (this) {
+			return columns.crossings.getAndSet(idx, 0);
+		}
+	}
+
+	/**
+	 * @param idx a dense node index
+	 * @return whether the labels of the node were classified by putMap
+	 */
+	public boolean isClassified(int idx) {
+		return getBit(columns.classified, idx);
+	}
+
+	/**
+	 * Sets or clears the classified bit of specified dense index. A bit set while the
+	 * columns grow may be lost; the node is then classified once more.
+	 */
+	public void setClassified(int idx, boolean classified) {
+		setBit(columns.classified, idx, classified);
+	}
+
+	/**
+	 * Clears the classified bits of all nodes.
+	 */
+	public void clearClassified() {
+		AtomicLongArray bits = columns.classified;
+		for (int i = 0; i < bits.length(); i++) {
+			bits.set(i, 0L);
+		}
+	}
+
+	/**
+	 * Gives back crossings taken by {@link #takeCrossings(int)} but not consolidated.
+	 */
+	public synchronized void addCrossings(int idx, int count) {
+		columns.crossings.addAndGet(idx, count);
+	}
+
+	/**
+	 * Returns the dense index of specified node, assigning one if it has none yet.
+	 * @param n a node of this structure
+	 * @return its index in the {@link NodeColumns}, {@link #NO_INDEX} for null
+	 */
+	public int index(Node n) {
+		if (n == null) {
+			return NO_INDEX;
+		}
+		int idx = indexOf(n.getNodeId());
+		if (idx == NO_INDEX) {
+			return register(n);
+		}
+		if (columns.nodes[idx] != n) {
+			// 节点被移除后重新加入，换成新对象
+			setSlot(idx, n);
+		}
+		return idx;
+	}
+
+	/*
+	 * Writes the node slot under the lock of register, so the write cannot land in
+	 * columns that a concurrent grow is replacing.
+	 */
+	private synchronized void setSlot(int idx, Node n) {
+		columns.nodes[idx] = n;
+	}
+
+	/**
+	 * Removes the node and clears its slot and prefetched mark in the columns, so the
+	 * columns hold no reference to it and its neighbourhood is prefetched again once it
+	 * is expected. Eviction and the decay of the structure both remove nodes through here.
+	 * The dense index stays reserved for the node id.
+	 */
+	@Override
+	public void removeNode(Node n) {
+		super.removeNode(n);
+		int idx = n == null ? NO_INDEX : indexOf(n.getNodeId());
+		if (idx != NO_INDEX && !containsNode(n.getNodeId())) {
+			setSlot(idx, null);
+			setBit(columns.prefetched, idx, false);
+		}
+	}
+
+	/**
+	 * Marks the node at specified dense index as prefetched.
+	 * @param idx a dense node index
+	 * @return true if it was not marked yet
+	 */
+	public boolean markPrefetched(int idx) {
+		return !setBit(columns.prefetched, idx, true);
+	}
+
+	/**
+	 * @param nodeId id of a node
+	 * @return its index in the {@link NodeColumns}, {@link #NO_INDEX} if it has none
+	 */
+	public int indexOf(int nodeId) {
+		int[] ids = indexById;
+		return nodeId >= 0 && nodeId < ids.length ? ids[nodeId] : NO_INDEX;
+	}
+
+	private synchronized int register(Node n) {
+		int id = n.getNodeId();
+		if (id < 0) {
+			return NO_INDEX;
+		}
+		int[] ids = indexById;
+		if (id < ids.length && ids[id] != NO_INDEX) {
+			return ids[id];
+		}
+		if (id >= ids.length) {
+			int oldlen = ids.length;
+			ids = Arrays.copyOf(ids, Math.max(id + 1, oldlen * 2));
+			Arrays.fill(ids, oldlen, ids.length, NO_INDEX);
+		}
+		int idx = indexedCount;
+		NodeColumns cols = columns;
+		if (idx >= cols.capacity) {
+			cols = cols.grow(cols.capacity * 2);
+			columns = cols;
+		}
+		cols.ids[idx] = id;
+		cols.nodes[idx] = n;
+		ids[id] = idx;
+		// 先发布列，再发布下标，读到新下标的线程必能读到新列
+		indexById = ids;
+		indexedCount = idx + 1;
+		return idx;
+	}
+
+	/**
+	 * @return the current columns; they are replaced when they grow, so don't keep them
+	 */
+	public NodeColumns getColumns() {
+		return columns;
+	}
+
+	/**
+	 * @return the number of indexed nodes, the valid length of the columns
+	 */
+	public int getIndexedCount() {
+		return indexedCount;
+	}
+
+	/**
+	 * @param nodeId id of a node
+	 * @return its cached weight, NaN if unknown
+	 */
+	public double getWeight(int nodeId) {
+		int idx = indexOf(nodeId);
+		return idx == NO_INDEX ? Double.NaN : columns.weight[idx];
+	}
+
+	/**
+	 * @param nodeId id of an indexed node
+	 * @param weight its weight
+	 */
+	public void setWeight(int nodeId, double weight) {
+		int idx = indexOf(nodeId);
+		if (idx != NO_INDEX) {
+			columns.weight[idx] = weight;
+		}
+	}
+
+	/**
+	 * @param nodeId id of a node
+	 * @return its packed location, {@link Integer#MIN_VALUE} if unknown
+	 */
+	public int getLocation(int nodeId) {
+		int idx = indexOf(nodeId);
+		return idx == NO_INDEX ? NO_LOCATION : columns.location[idx];
+	}
+
+	/**
+	 * @param nodeId id of an indexed node
+	 * @param location its packed location
+	 */
+	public void setLocation(int nodeId, int location) {
+		int idx = indexOf(nodeId);
+		if (idx != NO_INDEX) {
+			columns.location[idx] = location;
+		}
+	}
+
+	/**
+	 * @param nodeId id of a node
+	 * @return the broadcast cycle in which it was last activated, -1 if never
+	 */
+	public long getLastActCycle(int nodeId) {
+		int idx = indexOf(nodeId);
+		return idx == NO_INDEX ? -1L : columns.lastCycle[idx];
+	}
+
+	/**
+	 * @param nodeId id of an indexed node
+	 * @param cycle the broadcast cycle in which it is activated
+	 */
+	public void setLastActCycle(int nodeId, long cycle) {
+		int idx = indexOf(nodeId);
+		if (idx != NO_INDEX) {
+			columns.lastCycle[idx] = cycle;
+		}
+	}
+
+	/**
+	 * @param nodeId id of an indexed node
+	 * @param tick the tick in which it propagated activation
+	 */
+	public void setFiredTick(int nodeId, long tick) {
+		int idx = indexOf(nodeId);
+		if (idx != NO_INDEX) {
+			columns.firedTick[idx] = tick;
+		}
+	}
+
+	/**
+	 * @param nodeId id of a node
+	 * @param tick current tick
+	 * @param window length of the refractory period in ticks
+	 * @return whether the node propagated less than window ticks ago
+	 */
+	public boolean isRefractory(int nodeId, long tick, long window) {
+		int idx = indexOf(nodeId);
+		if (idx == NO_INDEX) {
+			return false;
+		}
+		long fired = columns.firedTick[idx];
+		return fired != NEVER_FIRED && tick - fired < window;
+	}
+
+	/**
+	 * Marks specified node as visited in specified broadcast cycle. The marks are a bitset
+	 * over the dense index, dropped when a newer cycle starts.
+	 * 本周期访问标记，按稠密下标的位图
+	 * @param n a node of this structure
+	 * @param cycle current broadcast cycle
+	 * @return true if this is the first visit of the node in the cycle
+	 */
+	public boolean markVisited(Node n, long cycle) {
+		int idx = indexOf(n.getNodeId());
+		if (idx == NO_INDEX) {
+			idx = register(n);
+			if (idx == NO_INDEX) {
+				return true;
+			}
+		}
+		VisitMarks marks = visitMarks;
+		if (cycle < marks.cycle) {
+			// 落后线程的旧周期，不记
+			return true;
+		}
+		if (cycle != marks.cycle || idx >= marks.capacity()) {
+			marks = updateVisitMarks(cycle, idx);
+		}
+		return marks.mark(idx);
+	}
+
+	private synchronized VisitMarks updateVisitMarks(long cycle, int idx) {
+		VisitMarks marks = visitMarks;
+		if (cycle > marks.cycle) {
+			marks = new VisitMarks(cycle, Math.max(indexedCount, idx + 1));
+		} else if (idx >= marks.capacity()) {
+			marks = marks.grow(Math.max(idx + 1, marks.capacity() * 2));
+		}
+		visitMarks = marks;
+		return marks;
+	}
+
+	/*
+	 * Visited bitset of one broadcast cycle, bits set with CAS so only the first arrival wins.
+	 */
+	private static class VisitMarks {
+		private final long cycle;
+		private final AtomicLongArray words;
+
+		VisitMarks(long cycle, int capacity) {
+			this.cycle = cycle;
+			words = new AtomicLongArray((capacity + 63) >>> 6);
+		}
+
+		int capacity() {
+			return words.length() << 6;
+		}
+
+		boolean mark(int idx) {
+			int w = idx >>> 6;
+			long bit = 1L << (idx & 63);
+			long old;
+			do {
+				old = words.get(w);
+				if ((old & bit) != 0) {
+					return false;
+				}
+			} while (!words.compareAndSet(w, old, old | bit));
+			return true;
+		}
+
+		VisitMarks grow(int capacity) {
+			// 扩容期间别的线程在旧位图上的标记可能丢失，至多多扩散一次
+			VisitMarks res = new VisitMarks(cycle, capacity);
+			for (int i = 0; i < words.length(); i++) {
+				res.words.set(i, words.get(i));
+			}
+			return res;
+		}
+	}
+
+	/*
+	 * Copies the nodes and links of specified structure into a new one, with activation
+	 * and incentive salience reset, so the copy holds the graph without the state of the
+	 * moment it was taken.
+	 */
+	static PamNodeStructure baseState(NodeStructure ns) {
+		PamNodeStructure base = new PamNodeStructure("PamNodeImpl", "PamLinkImpl");
+		for (Node n : ns.getNodes()) {
+			Node copy = base.addNode(n, "PamNodeImpl");
+			copy.setActivation(0.0);
+			copy.setIncentiveSalience(0.0);
+		}
+		for (Link l : ns.getLinks()) {
+			Link copy = base.addLink(l, "PamLinkImpl");
+			if (copy != null) {
+				copy.setActivation(0.0);
+			}
+		}
+		return base;
+	}
+}
@@ -0,0 +1,196 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2011 The University of Memphis.  All rights reserved. 
+ * This program and the accompanying materials are made available 
+ * under the terms of the LIDA Software Framework Non-Commercial License v1.0 
+ * which accompanies this distribution, and is available at
+ * http://ccrg.cs.memphis.edu/assets/papers/2010/LIDA-framework-non-commercial-v1.0.pdf
+ *******************************************************************************/
+package edu.memphis.ccrg.lida.pam;
+
+import edu.memphis.ccrg.lida.framework.tasks.TaskManager;
+
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Low-overhead, sampled record of the events on the PAM hot path, kept in a
+ * fixed size ring buffer which can be queried at runtime.
+ * 采样事件环形缓冲，运行时可查，不占用stdout锁
+ */
+public class PamTrace {
+	private static final Logger logger = Logger
+			.getLogger(PamTrace.class.getCanonicalName());
+
+	/**
+	 * Types of the traced events.
+	 */
+	public enum EventType {
+		/** activation propagated to a sink */
+		PROPAGATE,
+		/** sink skipped in its refractory period */
+		SKIP_REFRACTORY,
+		/** percept sent to a workspace buffer */
+		PERCEPT_ROUTED,
+		/** graph db query */
+		QUERY,
+		/** event of a watched node, never sampled out */
+		WATCH
+	}
+
+	/**
+	 * One traced event.
+	 */
+	public static class Event {
+		private final long tick;
+		private final EventType type;
+		private final int nodeId;
+		private final String detail;
+
+		private Event(long tick, EventType type, int nodeId, String detail) {
+			this.tick = tick;
+			this.type = type;
+			this.nodeId = nodeId;
+			this.detail = detail;
+		}
+
+		public long getTick() {
+			return tick;
+		}
+
+		public EventType getType() {
+			return type;
+		}
+
+		public int getNodeId() {
+			return nodeId;
+		}
+
+		public String getDetail() {
+			return detail;
+		}
+
+		@Override
+		public String toString() {
+			return tick + " " + type + " " + nodeId + " " + detail;
+		}
+	}
+
+	private final boolean enabled;
+	private final int sampleRate;
+	private volatile Set<EventType> types = EnumSet.allOf(EventType.class);
+	private final Set<String> watched = new HashSet<String>();
+	private final Event[] ring;
+	private final AtomicLong cursor = new AtomicLong();
+
+	/**
+	 * @param enabled whether events are recorded at all
+	 * @param capacity number of events kept
+	 * @param sampleRate one in this many events is recorded
+	 * @param watch comma separated names of the watched nodes
+	 */
+	public PamTrace(boolean enabled, int capacity, int sampleRate, String watch) {
+		this.enabled = enabled;
+		this.sampleRate = Math.max(1, sampleRate);
+		ring = new Event[Math.max(1, capacity)];
+		if (watch != null) {
+			for (String name : watch.split(",")) {
+				if (!name.trim().isEmpty()) {
+					watched.add(name.trim());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Restricts the recorded events to specified types.
+	 * @param names comma separated {@link EventType} names, empty for all types; unknown
+	 * names are logged and skipped
+	 */
+	public void setTypes(String names) {
+		Set<EventType> set = EnumSet.noneOf(EventType.class);
+		if (names != null) {
+			for (String name : names.split(",")) {
+				String token = name.trim();
+				if (token.isEmpty()) {
+					continue;
+				}
+				try {
+					set.add(EventType.valueOf(token.toUpperCase()));
+				} catch (IllegalArgumentException e) {
+					// 诊断开关，拼错只告警，不中断init
+					logger.log(Level.WARNING, "Unknown PAM trace event type {1}, ignored",
+							new Object[]{TaskManager.getCurrentTick(), token});
+				}
+			}
+		}
+		types = set.isEmpty() ? EnumSet.allOf(EventType.class) : set;
+	}
+
+	/**
+	 * @param type an event type
+	 * @return whether events of specified type are recorded, before sampling
+	 */
+	public boolean isTraced(EventType type) {
+		return enabled && types.contains(type);
+	}
+
+	/**
+	 * @return whether the next event should be recorded
+	 */
+	public boolean sample() {
+		return enabled && (sampleRate == 1 || ThreadLocalRandom.current().nextInt(sampleRate) == 0);
+	}
+
+	/**
+	 * @param name node name
+	 * @return whether the events of the node are always recorded
+	 */
+	public boolean isWatched(String name) {
+		return enabled && !watched.isEmpty() && watched.contains(name);
+	}
+
+	/**
+	 * Records an event, overwriting the oldest one when the buffer is full.
+	 */
+	public void record(EventType type, int nodeId, String detail) {
+		if (!enabled || (type != EventType.WATCH && !types.contains(type))) {
+			return;
+		}
+		long i = cursor.getAndIncrement();
+		ring[(int) (i % ring.length)] = new Event(TaskManager.getCurrentTick(), type, nodeId, detail);
+	}
+
+	/**
+	 * @return the recorded events, oldest first
+	 */
+	public List<Event> getEvents() {
+		return getEvents(null);
+	}
+
+	/**
+	 * @param type type of the wanted events, null for all
+	 * @return the recorded events of specified type, oldest first
+	 */
+	public List<Event> getEvents(EventType type) {
+		List<Event> events = new ArrayList<Event>();
+		long end = cursor.get();
+		for (long i = Math.max(0, end - ring.length); i < end; i++) {
+			Event e = ring[(int) (i % ring.length)];
+			if (e != null && (type == null || e.type == type)) {
+				events.add(e);
+			}
+		}
+		return events;
+	}
+
+	/**
+	 * Drops all recorded events.
+	 */
+	public void clear() {
+		Arrays.fill(ring, null);
+		cursor.set(0);
+	}
+}
@@ -0,0 +1,23 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2011 The University of Memphis.  All rights reserved. 
+ * This program and the accompanying materials are made available 
+ * under the terms of the LIDA Software Framework Non-Commercial License v1.0 
+ * which accompanies this distribution, and is available at
+ * http://ccrg.cs.memphis.edu/assets/papers/2010/LIDA-framework-non-commercial-v1.0.pdf
+ *******************************************************************************/
+package edu.memphis.ccrg.lida.pam;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Carries batches of {@link ActivationMessage}s to the partition that owns their sinks.
+ */
+public interface PartitionTransport extends Closeable {
+	void send(int partition, List<ActivationMessage> batch) throws IOException;
+
+	@Override
+	default void close() throws IOException {
+	}
+}
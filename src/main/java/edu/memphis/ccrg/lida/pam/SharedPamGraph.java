@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * Copyright (c) 2009, 2011 The University of Memphis.  All rights reserved. 
+ * This program and the accompanying materials are made available 
+ * under the terms of the LIDA Software Framework Non-Commercial License v1.0 
+ * which accompanies this distribution, and is available at
+ * http://ccrg.cs.memphis.edu/assets/papers/2010/LIDA-framework-non-commercial-v1.0.pdf
+ *******************************************************************************/
+package edu.memphis.ccrg.lida.pam;
+
+import edu.memphis.ccrg.lida.framework.shared.*;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Immutable node and link topology loaded once and shared by the PAMs of several agents,
+ * registered under a key. Each PAM copies the nodes and links it touches into its own
+ * structure, which then holds only its activation, incentive salience and truth.
+ * 多agent共享的只读拓扑，各agent只复制用到的点边
+ */
+public class SharedPamGraph {
+
+	private static final Map<String, SharedPamGraph> REGISTRY = new ConcurrentHashMap<String, SharedPamGraph>();
+
+	private final Map<String, Node> nodesByName;
+	private final Map<Integer, List<Link>> linksBySource;
+	private final int linkCount;
+
+	private SharedPamGraph(PamNodeStructure base) {
+		Map<String, Node> byName = new HashMap<String, Node>();
+		for (Node n : base.getNodes()) {
+			if (n.getName() != null) {
+				byName.put(n.getName(), n);
+			}
+		}
+		Map<Integer, List<Link>> bySource = new HashMap<Integer, List<Link>>();
+		int count = 0;
+		for (Link l : base.getLinks()) {
+			bySource.computeIfAbsent(l.getSource().getNodeId(), k -> new ArrayList<Link>()).add(l);
+			count++;
+		}
+		for (Map.Entry<Integer, List<Link>> e : bySource.entrySet()) {
+			e.setValue(Collections.unmodifiableList(e.getValue()));
+		}
+		nodesByName = Collections.unmodifiableMap(byName);
+		linksBySource = Collections.unmodifiableMap(bySource);
+		linkCount = count;
+	}
+
+	/**
+	 * Copies the nodes and links of specified structure, with activation and incentive
+	 * salience reset, into a new shared graph. Later changes to the structure don't show.
+	 * @param ns the structure holding the loaded graph
+	 * @return the shared graph
+	 */
+	public static SharedPamGraph capture(NodeStructure ns) {
+		return new SharedPamGraph(PamNodeStructure.baseState(ns));
+	}
+
+	/**
+	 * Registers specified graph under specified key unless one is registered already.
+	 * @return the graph registered under the key
+	 */
+	public static SharedPamGraph register(String key, SharedPamGraph graph) {
+		SharedPamGraph old = REGISTRY.putIfAbsent(key, graph);
+		return old == null ? graph : old;
+	}
+
+	/**
+	 * @return the graph registered under specified key, null if none
+	 */
+	public static SharedPamGraph get(String key) {
+		return REGISTRY.get(key);
+	}
+
+	/**
+	 * Drops the graph registered under specified key; agents using it keep it.
+	 */
+	public static void unregister(String key) {
+		REGISTRY.remove(key);
+	}
+
+	/**
+	 * @return the prototype node with specified name, null if none; copy it, never modify it
+	 */
+	public Node getNode(String name) {
+		return nodesByName.get(name);
+	}
+
+	/**
+	 * @return the prototype links whose source has specified id
+	 */
+	public List<Link> getLinksOfSource(int nodeId) {
+		List<Link> links = linksBySource.get(nodeId);
+		return links == null ? Collections.<Link>emptyList() : links;
+	}
+
+	public int getNodeCount() {
+		return nodesByName.size();
+	}
+
+	public int getLinkCount() {
+		return linkCount;
+	}
+}